@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * The measurements of a build that changed most against a baseline build,
+ * shown on the build's page.
+ * <p>
+ * They are ranked once, when the TestDataPublisher publishes, and saved
+ * with the build. The baseline's stored measurements are streamed a test
+ * object at a time, and only the top changes are kept, in a bounded heap.
+ * @author krwalker
+ */
+public class BuildAction implements hudson.model.Action {
+
+    /** The number of changes kept when none is configured. */
+    static final int DEFAULT_COUNT = 10;
+
+    /** The most earlier builds searched for one with measurements to compare with. */
+    static final int MAX_BASELINE_SEARCH = TestHistory.DEFAULT_LAST;
+
+    private final int buildNumber;
+    private final int baselineNumber;
+    private final int compared;
+    private final java.util.List<BuildDiff.Delta> changes;
+
+    private BuildAction(int buildNumber, int baselineNumber, int compared, java.util.List<BuildDiff.Delta> changes) {
+        this.buildNumber = buildNumber;
+        this.baselineNumber = baselineNumber;
+        this.compared = compared;
+        this.changes = changes;
+    }
+
+    /**
+     * Ranks the measurements of a build by how much they changed since the
+     * baseline, either way, relative to the baseline's values.
+     * @param count How many changes to keep.
+     */
+    static BuildAction compare(hudson.model.AbstractBuild<?, ?> build, BuildMeasurements buildMeasurements,
+            hudson.model.AbstractBuild<?, ?> baseline, int count) throws java.io.IOException {
+        java.util.Comparator<BuildDiff.Delta> comparator = BuildDiff.comparatorOf(BuildDiff.Sort.CHANGE);
+        java.util.PriorityQueue<BuildDiff.Delta> kept = new java.util.PriorityQueue<BuildDiff.Delta>(count,
+                java.util.Collections.reverseOrder(comparator));
+        int compared = 0;
+        MeasurementStore.Cursor cursor = new MeasurementStore(baseline.getRootDir()).open();
+        try {
+            while (cursor.next()) {
+                TestObjectMeasurements measurements = buildMeasurements.get(TestObjectId.fromString(cursor.getId()));
+                if (measurements == null) {
+                    continue;
+                }
+                for (Measurement before : cursor.getMeasurements()) {
+                    Measurement after = find(measurements, before.getName());
+                    if (after == null || !BuildDiff.isComparable(before, after)) {
+                        continue;
+                    }
+                    ++compared;
+                    double relativeChange = BuildDiff.relativeChange(before.getNumber(), after.getNumber());
+                    if (relativeChange != 0) {
+                        BuildDiff.keep(kept, count, comparator,
+                                new BuildDiff.Delta(cursor.getId(), before, after, relativeChange));
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return new BuildAction(build.getNumber(), baseline.getNumber(), compared,
+                new java.util.ArrayList<BuildDiff.Delta>(BuildDiff.sorted(kept, comparator)));
+    }
+
+    private static Measurement find(TestObjectMeasurements measurements, String name) {
+        for (Measurement measurement : measurements) {
+            if (measurement.getName().equals(name)) {
+                return measurement;
+            }
+        }
+        return null;
+    }
+
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    public int getBaselineNumber() {
+        return baselineNumber;
+    }
+
+    /**
+     * @return The number of measurements with numbers in both builds.
+     */
+    public int getCompared() {
+        return compared;
+    }
+
+    /**
+     * @return The measurements that changed, the largest relative change
+     * first.
+     */
+    public java.util.List<BuildDiff.Delta> getChanges() {
+        return java.util.Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * @return The query string of the BuildDiff of the build and its
+     * baseline.
+     */
+    public String getDiffQuery() {
+        return "?from=" + baselineNumber + "&to=" + buildNumber + "&sort=" + BuildDiff.Sort.CHANGE;
+    }
+
+    // Only the summary on the build's page is shown.
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Measurement Changes";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
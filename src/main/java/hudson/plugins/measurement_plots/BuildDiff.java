@@ -0,0 +1,505 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * The differences between the measurements of two builds of a job.
+ * <p>
+ * The stored measurements of the builds are merged a test object at a time
+ * in id order (see {@link MeasurementStore.Cursor}), so neither build's
+ * measurements, nor its test results, are ever loaded whole. Only the
+ * differences up to the requested page are kept, in a bounded heap.
+ * <p>
+ * The builds are named by the "from" and "to" query parameters. Only
+ * differences of at least "threshold" percent are listed, in the "sort"
+ * order.
+ * @author krwalker
+ */
+public class BuildDiff {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(BuildDiff.class.getName());
+
+    /** The number of differences in a page of the table. */
+    static final int PAGE_SIZE = 50;
+
+    /** Deeper pages would keep too many differences; raise the threshold instead. */
+    static final int MAX_PAGE = 100;
+
+    /** How the differences are listed. */
+    public enum Sort {
+        /** The largest relative increase first. */
+        REGRESSION,
+        /** The largest relative decrease first. */
+        IMPROVEMENT,
+        /** The largest relative change either way first. */
+        CHANGE,
+        /** By test object and measurement name. */
+        NAME
+    }
+
+    /** A measurement of a test object in both builds. */
+    public static class Delta {
+        private final String testObjectId;
+        private final String name;
+        private final String before;
+        private final String after;
+        private final double change;
+        private final double relativeChange;
+        private final String unit;
+
+        Delta(String testObjectId, Measurement before, Measurement after, double relativeChange) {
+            this.testObjectId = testObjectId;
+            this.name = after.getName();
+            this.before = before.getValue();
+            this.after = after.getValue();
+            this.change = after.getNumber() - before.getNumber();
+            this.relativeChange = relativeChange;
+            this.unit = after.getUnit();
+        }
+
+        public String getTestObjectId() {
+            return testObjectId;
+        }
+
+        /**
+         * @return The test object id without the test result action's name.
+         */
+        public String getTestObjectName() {
+            return testObjectId.substring(testObjectId.indexOf('/') + 1);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The value in the earlier build, as printed.
+         */
+        public String getBefore() {
+            return before;
+        }
+
+        /**
+         * @return The value in the later build, as printed.
+         */
+        public String getAfter() {
+            return after;
+        }
+
+        /**
+         * @return The change in the base unit of {@link #getUnit}.
+         */
+        public double getChange() {
+            return change;
+        }
+
+        /**
+         * @return The base unit of the values, or null if there is none.
+         */
+        public String getUnit() {
+            return unit;
+        }
+
+        /**
+         * @return The change relative to the earlier value, in percent,
+         * which is infinite if the earlier value is zero.
+         */
+        public double getChangePercent() {
+            return relativeChange * 100;
+        }
+
+        /**
+         * @return The query string of the Overlay of just this measurement.
+         */
+        public String getOverlayQuery() {
+            try {
+                return "?series=" + java.net.URLEncoder.encode(testObjectId + '|' + name, "UTF-8");
+            } catch (java.io.UnsupportedEncodingException exception) {
+                // UTF-8 is always supported.
+                throw new AssertionError(exception);
+            }
+        }
+    }
+
+    private static final java.util.Comparator<Delta> BY_NAME = new java.util.Comparator<Delta>() {
+        public int compare(Delta one, Delta other) {
+            int order = one.testObjectId.compareTo(other.testObjectId);
+            return order != 0 ? order : one.name.compareTo(other.name);
+        }
+    };
+
+    transient private final hudson.model.AbstractProject<?, ?> project;
+    transient private final int from;
+    transient private final int to;
+    transient private final double threshold;
+    transient private final Sort sort;
+    transient private final int page;
+
+    // Found by compare().
+    transient private java.util.List<Delta> deltas;
+    transient private int compared;
+    transient private int changed;
+    transient private int incomparable;
+    transient private int onlyBefore;
+    transient private int onlyAfter;
+    transient private String error;
+
+    /**
+     * @param threshold The smallest relative change listed, in percent.
+     * @param page The page of the table, counting from one.
+     */
+    BuildDiff(hudson.model.AbstractProject<?, ?> project, int from, int to, double threshold, Sort sort, int page) {
+        this.project = project;
+        this.from = from;
+        this.to = to;
+        this.threshold = Math.abs(threshold);
+        this.sort = sort;
+        this.page = Math.max(1, Math.min(MAX_PAGE, page));
+    }
+
+    /**
+     * @return The diff named by the current request's parameters. The
+     * builds default to the last completed build and the one before it.
+     */
+    static BuildDiff fromRequest(hudson.model.AbstractProject<?, ?> project,
+            org.kohsuke.stapler.StaplerRequest request) {
+        int to = 0;
+        int from = 0;
+        hudson.model.AbstractBuild<?, ?> last = project.getLastCompletedBuild();
+        if (last != null) {
+            to = last.getNumber();
+            hudson.model.AbstractBuild<?, ?> previous = last.getPreviousCompletedBuild();
+            if (previous != null) {
+                from = previous.getNumber();
+            }
+        }
+        to = getParameter(request, "to", to);
+        from = getParameter(request, "from", from);
+        double threshold = 0;
+        String thresholdParameter = hudson.Util.fixEmptyAndTrim(request.getParameter("threshold"));
+        if (thresholdParameter != null) {
+            try {
+                threshold = Double.parseDouble(thresholdParameter);
+            } catch (NumberFormatException exception) {
+                // Keep the default.
+            }
+        }
+        Sort sort = Sort.REGRESSION;
+        String sortParameter = hudson.Util.fixEmptyAndTrim(request.getParameter("sort"));
+        if (sortParameter != null) {
+            try {
+                sort = Sort.valueOf(sortParameter);
+            } catch (IllegalArgumentException exception) {
+                // Keep the default.
+            }
+        }
+        return new BuildDiff(project, from, to, threshold, sort, getParameter(request, "page", 1));
+    }
+
+    private static int getParameter(org.kohsuke.stapler.StaplerRequest request, String name, int defaultValue) {
+        String value = hudson.Util.fixEmptyAndTrim(request.getParameter(name));
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException exception) {
+            return defaultValue;
+        }
+    }
+
+    public hudson.model.AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    public Sort[] getSorts() {
+        return Sort.values();
+    }
+
+    /**
+     * @return The page of the table, counting from one.
+     */
+    public int getPage() {
+        return Math.min(page, getPageCount());
+    }
+
+    public int getPageCount() {
+        compare();
+        return Math.max(1, Math.min(MAX_PAGE, (changed + PAGE_SIZE - 1) / PAGE_SIZE));
+    }
+
+    /**
+     * @return The query string of a page of the table.
+     */
+    public String getPageQuery(int page) {
+        return "?from=" + from + "&to=" + to + "&threshold=" + threshold + "&sort=" + sort + "&page=" + page;
+    }
+
+    /**
+     * @return The differences shown on the current page of the table.
+     */
+    public java.util.List<Delta> getDeltas() {
+        compare();
+        int start = (getPage() - 1) * PAGE_SIZE;
+        return deltas.subList(Math.min(deltas.size(), start), Math.min(deltas.size(), start + PAGE_SIZE));
+    }
+
+    /**
+     * @return Why the builds could not be compared, or null if they were.
+     */
+    public String getError() {
+        compare();
+        return error;
+    }
+
+    /**
+     * @return The number of measurements with numbers in both builds.
+     */
+    public int getCompared() {
+        compare();
+        return compared;
+    }
+
+    /**
+     * @return The number of compared measurements that changed by at least
+     * the threshold.
+     */
+    public int getChanged() {
+        compare();
+        return changed;
+    }
+
+    /**
+     * @return The number of measurements in both builds that are not numbers
+     * in both, or whose units differ.
+     */
+    public int getIncomparable() {
+        compare();
+        return incomparable;
+    }
+
+    /**
+     * @return The number of measurements only in the earlier build.
+     */
+    public int getOnlyBefore() {
+        compare();
+        return onlyBefore;
+    }
+
+    /**
+     * @return The number of measurements only in the later build.
+     */
+    public int getOnlyAfter() {
+        compare();
+        return onlyAfter;
+    }
+
+    /**
+     * @return The order the differences are listed in for a sort.
+     */
+    static java.util.Comparator<Delta> comparatorOf(Sort sort) {
+        switch (sort) {
+        case NAME:
+            return BY_NAME;
+        case IMPROVEMENT:
+            return new java.util.Comparator<Delta>() {
+                public int compare(Delta one, Delta other) {
+                    int order = Double.compare(one.relativeChange, other.relativeChange);
+                    return order != 0 ? order : BY_NAME.compare(one, other);
+                }
+            };
+        case CHANGE:
+            return new java.util.Comparator<Delta>() {
+                public int compare(Delta one, Delta other) {
+                    int order = Double.compare(Math.abs(other.relativeChange), Math.abs(one.relativeChange));
+                    return order != 0 ? order : BY_NAME.compare(one, other);
+                }
+            };
+        default:
+            return new java.util.Comparator<Delta>() {
+                public int compare(Delta one, Delta other) {
+                    int order = Double.compare(other.relativeChange, one.relativeChange);
+                    return order != 0 ? order : BY_NAME.compare(one, other);
+                }
+            };
+        }
+    }
+
+    /**
+     * Merges the stored measurements of the two builds, keeping the
+     * differences up to the end of the current page.
+     */
+    private void compare() {
+        if (deltas != null) {
+            return;
+        }
+        deltas = java.util.Collections.emptyList();
+        hudson.model.AbstractBuild<?, ?> fromBuild = project.getBuildByNumber(from);
+        hudson.model.AbstractBuild<?, ?> toBuild = project.getBuildByNumber(to);
+        if (fromBuild == null || toBuild == null) {
+            error = "No build #" + (fromBuild == null ? from : to);
+            return;
+        }
+        java.util.Comparator<Delta> comparator = comparatorOf(sort);
+        int capacity = page * PAGE_SIZE;
+        // The head is the difference listed last, which is the first to go.
+        java.util.PriorityQueue<Delta> kept = new java.util.PriorityQueue<Delta>(capacity,
+                java.util.Collections.reverseOrder(comparator));
+        MeasurementStore.Cursor before = null;
+        MeasurementStore.Cursor after = null;
+        try {
+            before = new MeasurementStore(fromBuild.getRootDir()).open();
+            after = new MeasurementStore(toBuild.getRootDir()).open();
+            boolean hasBefore = before.next();
+            boolean hasAfter = after.next();
+            while (hasBefore || hasAfter) {
+                int order = !hasBefore ? 1 : !hasAfter ? -1 : before.getId().compareTo(after.getId());
+                if (order < 0) {
+                    onlyBefore += before.getMeasurements().length;
+                    hasBefore = before.next();
+                } else if (order > 0) {
+                    onlyAfter += after.getMeasurements().length;
+                    hasAfter = after.next();
+                } else {
+                    compare(before.getId(), before.getMeasurements(), after.getMeasurements(),
+                            kept, capacity, comparator);
+                    hasBefore = before.next();
+                    hasAfter = after.next();
+                }
+            }
+        } catch (java.io.IOException exception) {
+            LOGGER.log(java.util.logging.Level.WARNING, "Failed to compare the measurements of "
+                    + fromBuild + " and " + toBuild, exception);
+            error = "Failed to read the measurements: " + exception.getMessage();
+            return;
+        } finally {
+            close(before);
+            close(after);
+        }
+        deltas = sorted(kept, comparator);
+    }
+
+    /**
+     * Merges the measurements of a test object, which are sorted by name.
+     */
+    private void compare(String id, Measurement[] before, Measurement[] after,
+            java.util.PriorityQueue<Delta> kept, int capacity, java.util.Comparator<Delta> comparator) {
+        int i = 0;
+        int j = 0;
+        while (i < before.length || j < after.length) {
+            int order = i == before.length ? 1 : j == after.length ? -1
+                    : before[i].getName().compareTo(after[j].getName());
+            if (order < 0) {
+                ++onlyBefore;
+                ++i;
+            } else if (order > 0) {
+                ++onlyAfter;
+                ++j;
+            } else {
+                Measurement earlier = before[i++];
+                Measurement later = after[j++];
+                if (!isComparable(earlier, later)) {
+                    ++incomparable;
+                    continue;
+                }
+                ++compared;
+                double relativeChange = relativeChange(earlier.getNumber(), later.getNumber());
+                if (Math.abs(relativeChange) * 100 < threshold) {
+                    continue;
+                }
+                ++changed;
+                keep(kept, capacity, comparator, new Delta(id, earlier, later, relativeChange));
+            }
+        }
+    }
+
+    /**
+     * @return Whether both values are numbers in units that can be compared.
+     */
+    static boolean isComparable(Measurement before, Measurement after) {
+        return before.isNumeric() && after.isNumeric()
+                && Unit.isComparable(before.getPrintedUnit(), after.getPrintedUnit());
+    }
+
+    /**
+     * Adds a difference to a heap of at most capacity differences, whose
+     * head is the one listed last, if it is listed before that one.
+     */
+    static void keep(java.util.PriorityQueue<Delta> kept, int capacity, java.util.Comparator<Delta> comparator,
+            Delta delta) {
+        if (kept.size() < capacity) {
+            kept.add(delta);
+        } else if (comparator.compare(delta, kept.peek()) < 0) {
+            kept.poll();
+            kept.add(delta);
+        }
+    }
+
+    /**
+     * @return The kept differences in the order they are listed.
+     */
+    static java.util.List<Delta> sorted(java.util.PriorityQueue<Delta> kept, java.util.Comparator<Delta> comparator) {
+        Delta[] sorted = kept.toArray(new Delta[kept.size()]);
+        java.util.Arrays.sort(sorted, comparator);
+        return java.util.Arrays.asList(sorted);
+    }
+
+    /**
+     * @return The change relative to the earlier value, which is infinite
+     * if the earlier value is zero and the later one is not.
+     */
+    static double relativeChange(double before, double after) {
+        if (before == 0) {
+            return after == 0 ? 0 : after > 0 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+        }
+        return (after - before) / Math.abs(before);
+    }
+
+    private static void close(MeasurementStore.Cursor cursor) {
+        if (cursor != null) {
+            try {
+                cursor.close();
+            } catch (java.io.IOException exception) {
+                LOGGER.log(java.util.logging.Level.FINE, "Failed to close a measurement file", exception);
+            }
+        }
+    }
+}
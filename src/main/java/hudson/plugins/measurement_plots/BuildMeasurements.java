@@ -30,4 +30,22 @@ package hudson.plugins.measurement_plots;
  * @author krwalker
  */
 public class BuildMeasurements extends java.util.HashMap<TestObjectId, TestObjectMeasurements> {
+
+    /**
+     * Records the same measurements for several test objects. Each test
+     * object gets its own copy.
+     */
+    void put(java.util.List<TestObjectId> ids, TestObjectMeasurements measurements) {
+        for (int i = 0; i < ids.size(); ++i) {
+            put(ids.get(i), i == 0 ? measurements : measurements.copy());
+        }
+    }
+
+    static java.util.List<TestObjectId> idsOf(java.util.List<hudson.tasks.test.TestResult> results) {
+        java.util.List<TestObjectId> ids = new java.util.ArrayList<TestObjectId>(results.size());
+        for (hudson.tasks.test.TestResult result : results) {
+            ids.add(TestObjectId.fromString(result.getId()));
+        }
+        return ids;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * A shift in the values of a measurement, found by the ChangePointDetector.
+ * @author krwalker
+ */
+public class ChangePoint {
+
+    private final int buildNumber;
+    private final int detectedBuildNumber;
+    private final String testObjectId;
+    private final String name;
+    private final double before;
+    private final double after;
+
+    ChangePoint(int buildNumber, int detectedBuildNumber, String testObjectId, String name,
+            double before, double after) {
+        this.buildNumber = buildNumber;
+        this.detectedBuildNumber = detectedBuildNumber;
+        this.testObjectId = testObjectId;
+        this.name = name;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return The first build after the shift.
+     */
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    /**
+     * @return The build whose measurement made the shift significant.
+     */
+    public int getDetectedBuildNumber() {
+        return detectedBuildNumber;
+    }
+
+    public String getTestObjectId() {
+        return testObjectId;
+    }
+
+    /**
+     * @return The test object id without the test result action's name.
+     */
+    public String getTestObjectName() {
+        return testObjectId.substring(testObjectId.indexOf('/') + 1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The measurement as the Overlay names it.
+     */
+    public String getSeries() {
+        return testObjectId + '|' + name;
+    }
+
+    /**
+     * @return The query string of the Overlay of just this measurement.
+     */
+    public String getOverlayQuery() {
+        try {
+            return "?series=" + java.net.URLEncoder.encode(getSeries(), "UTF-8");
+        } catch (java.io.UnsupportedEncodingException exception) {
+            // UTF-8 is always supported.
+            throw new AssertionError(exception);
+        }
+    }
+
+    /** The mean before the shift. */
+    public double getBefore() {
+        return before;
+    }
+
+    /** The mean since the shift. */
+    public double getAfter() {
+        return after;
+    }
+
+    /**
+     * @return The shift relative to the mean before it, in percent, or
+     * zero if that mean is zero.
+     */
+    public double getChangePercent() {
+        return before == 0 ? 0 : (after - before) / Math.abs(before) * 100;
+    }
+
+    void write(java.io.DataOutputStream out) throws java.io.IOException {
+        MeasurementStore.writeVarInt(out, buildNumber);
+        MeasurementStore.writeVarInt(out, detectedBuildNumber);
+        MeasurementStore.writeString(out, testObjectId);
+        MeasurementStore.writeString(out, name);
+        out.writeDouble(before);
+        out.writeDouble(after);
+    }
+
+    static ChangePoint read(java.io.DataInputStream in) throws java.io.IOException {
+        int buildNumber = MeasurementStore.readVarInt(in);
+        int detectedBuildNumber = MeasurementStore.readVarInt(in);
+        String testObjectId = MeasurementStore.readString(in);
+        String name = MeasurementStore.readString(in);
+        double before = in.readDouble();
+        return new ChangePoint(buildNumber, detectedBuildNumber, testObjectId, name, before, in.readDouble());
+    }
+
+    @Override
+    public String toString() {
+        return getTestObjectName() + " : " + name + " changed from " + before + " to " + after
+                + " in build #" + buildNumber;
+    }
+}
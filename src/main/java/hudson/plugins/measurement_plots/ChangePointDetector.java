@@ -0,0 +1,509 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * Finds shifts in the mean of every numeric measurement of a job with a
+ * two-sided CUSUM, updated as each build publishes.
+ * <p>
+ * Each series keeps the {@link RunningStats} of its current regime and the
+ * cumulative sums of its deviations above and below the regime's mean,
+ * less a slack of {@link #SLACK} standard deviations. A sum above
+ * {@link #THRESHOLD} standard deviations is a change point, dated within
+ * the values since that sum last rose from zero, and starts a new regime.
+ * Shifts smaller than {@link #MIN_SHIFT} standard deviations are taken for
+ * noise.
+ * <p>
+ * The state is kept in the job's SeriesIndex directory, in the same
+ * buckets, so a build only holds one bucket's state in memory at a time.
+ * Change points are appended to a log there, and kept in memory while the
+ * log is unchanged.
+ * @author krwalker
+ */
+final class ChangePointDetector {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(ChangePointDetector.class.getName());
+
+    /** The values a regime needs before shifts from it are looked for. */
+    static final int MIN_SAMPLES = 20;
+
+    /** The slack, in standard deviations. */
+    static final double SLACK = 1;
+
+    /** The decision threshold, in standard deviations. */
+    static final double THRESHOLD = 8;
+
+    /** The smallest shift reported, in standard deviations. */
+    static final double MIN_SHIFT = 3;
+
+    /** The most values kept to date a shift. */
+    static final int MAX_RUN = 50;
+
+    /**
+     * The smallest standard deviation used, relative to the mean, so that
+     * series without noise still need a real shift.
+     */
+    static final double MIN_RELATIVE_DEVIATION = 0.001;
+
+    private static final String LOG_FILE_NAME = "changepoints.log";
+    private static final int STATE_VERSION = 1;
+
+    private static final java.util.Map<String, ChangePointDetector> detectors =
+            new java.util.HashMap<String, ChangePointDetector>();
+
+    /**
+     * @return The detector of the job.
+     */
+    static ChangePointDetector of(hudson.model.Job<?, ?> job) {
+        java.io.File rootDir = job.getRootDir();
+        synchronized (detectors) {
+            ChangePointDetector detector = detectors.get(rootDir.getPath());
+            if (detector == null) {
+                detector = new ChangePointDetector(new java.io.File(rootDir, SeriesIndex.DIRECTORY_NAME));
+                detectors.put(rootDir.getPath(), detector);
+            }
+            return detector;
+        }
+    }
+
+    /**
+     * Forgets the detector of a job that was deleted or renamed.
+     * @param rootDir The job directory the detector was of.
+     */
+    static void forget(java.io.File rootDir) {
+        synchronized (detectors) {
+            detectors.remove(rootDir.getPath());
+        }
+    }
+
+    private final java.io.File directory;
+
+    /**
+     * @param directory The SeriesIndex directory, or one the index is being
+     * rebuilt into.
+     */
+    ChangePointDetector(java.io.File directory) {
+        this.directory = directory;
+    }
+
+    // The change points in the log, oldest first, and by series. Both are
+    // replaced rather than changed, so callers may keep them.
+    private java.util.List<ChangePoint> changePoints;
+    private java.util.Map<String, java.util.List<ChangePoint>> changePointsBySeries;
+    // The length and time of the log they were read from.
+    private long logLength;
+    private long logModified;
+
+    /** The detection state of one series. */
+    private static final class State {
+        int lastBuild;
+        RunningStats regime = new RunningStats();
+        // The sums above and below the mean and the builds where they last
+        // rose from zero.
+        double high;
+        int highStart;
+        double low;
+        int lowStart;
+        // The values since either sum rose from zero, oldest first.
+        int[] runBuilds = new int[0];
+        double[] runValues = new double[0];
+
+        /**
+         * @return The change point the value makes significant, or null.
+         */
+        ChangePoint add(String id, String name, int buildNumber, double value) {
+            lastBuild = buildNumber;
+            if (regime.getCount() < MIN_SAMPLES) {
+                regime.add(value);
+                return null;
+            }
+            double mean = regime.getMean();
+            double deviation = Math.max(regime.getStandardDeviation(),
+                    Math.max(Math.abs(mean) * MIN_RELATIVE_DEVIATION, Double.MIN_NORMAL));
+            double slack = SLACK * deviation;
+
+            if (high == 0) {
+                highStart = buildNumber;
+            }
+            high = Math.max(0, high + value - mean - slack);
+            if (low == 0) {
+                lowStart = buildNumber;
+            }
+            low = Math.max(0, low + mean - value - slack);
+
+            if (high == 0 && low == 0) {
+                // Only values in control describe the regime.
+                regime.add(value);
+                runBuilds = new int[0];
+                runValues = new double[0];
+                return null;
+            }
+            addToRun(buildNumber, value);
+
+            ChangePoint changePoint = null;
+            if (high > THRESHOLD * deviation) {
+                changePoint = locate(id, name, mean, highStart);
+            } else if (low > THRESHOLD * deviation) {
+                changePoint = locate(id, name, mean, lowStart);
+            } else {
+                return null;
+            }
+            high = 0;
+            low = 0;
+            if (Math.abs(changePoint.getAfter() - changePoint.getBefore()) < MIN_SHIFT * deviation) {
+                // A run of noise rather than a new regime.
+                changePoint = null;
+            } else {
+                // The values since the shift begin the new regime.
+                regime = new RunningStats();
+                for (int index = 0; index < runBuilds.length; ++index) {
+                    if (runBuilds[index] >= changePoint.getBuildNumber()) {
+                        regime.add(runValues[index]);
+                    }
+                }
+            }
+            runBuilds = new int[0];
+            runValues = new double[0];
+            return changePoint;
+        }
+
+        private void addToRun(int buildNumber, double value) {
+            int length = Math.min(runBuilds.length + 1, MAX_RUN);
+            int[] builds = new int[length];
+            double[] values = new double[length];
+            int kept = length - 1;
+            System.arraycopy(runBuilds, runBuilds.length - kept, builds, 0, kept);
+            System.arraycopy(runValues, runValues.length - kept, values, 0, kept);
+            builds[kept] = buildNumber;
+            values[kept] = value;
+            runBuilds = builds;
+            runValues = values;
+        }
+
+        /**
+         * Dates the shift to the build after which the values of the run
+         * depart furthest from the mean, for the number of them.
+         */
+        private ChangePoint locate(String id, String name, double mean, int start) {
+            int best = runBuilds.length - 1;
+            double bestScore = -1;
+            double suffix = 0;
+            for (int index = runBuilds.length - 1; index >= 0 && runBuilds[index] >= start; --index) {
+                suffix += runValues[index] - mean;
+                double score = suffix * suffix / (runBuilds.length - index);
+                if (score > bestScore) {
+                    best = index;
+                    bestScore = score;
+                }
+            }
+            double sum = 0;
+            for (int index = best; index < runValues.length; ++index) {
+                sum += runValues[index];
+            }
+            return new ChangePoint(runBuilds[best], lastBuild, id, name, mean, sum / (runValues.length - best));
+        }
+
+        void write(java.io.DataOutputStream out) throws java.io.IOException {
+            MeasurementStore.writeVarInt(out, lastBuild);
+            regime.write(out);
+            out.writeDouble(high);
+            MeasurementStore.writeVarInt(out, highStart);
+            out.writeDouble(low);
+            MeasurementStore.writeVarInt(out, lowStart);
+            MeasurementStore.writeVarInt(out, runBuilds.length);
+            for (int index = 0; index < runBuilds.length; ++index) {
+                MeasurementStore.writeVarInt(out, runBuilds[index]);
+                out.writeDouble(runValues[index]);
+            }
+        }
+
+        static State read(java.io.DataInputStream in) throws java.io.IOException {
+            State state = new State();
+            state.lastBuild = MeasurementStore.readVarInt(in);
+            state.regime = RunningStats.read(in);
+            state.high = in.readDouble();
+            state.highStart = MeasurementStore.readVarInt(in);
+            state.low = in.readDouble();
+            state.lowStart = MeasurementStore.readVarInt(in);
+            int length = MeasurementStore.readVarInt(in);
+            state.runBuilds = new int[length];
+            state.runValues = new double[length];
+            for (int index = 0; index < length; ++index) {
+                state.runBuilds[index] = MeasurementStore.readVarInt(in);
+                state.runValues[index] = in.readDouble();
+            }
+            return state;
+        }
+    }
+
+    private java.io.File getStateFile(int bucket) {
+        return new java.io.File(directory, "cusum-" + bucket + ".state");
+    }
+
+    private java.io.File getLogFile() {
+        return new java.io.File(directory, LOG_FILE_NAME);
+    }
+
+    /**
+     * Adds a build's numeric measurements to their series. Builds older than
+     * the last one added to a series are skipped for that series.
+     * @return The change points found.
+     */
+    synchronized java.util.List<ChangePoint> update(int buildNumber, BuildMeasurements buildMeasurements)
+            throws java.io.IOException {
+        java.util.List<java.util.List<java.util.Map.Entry<TestObjectId, TestObjectMeasurements>>> buckets =
+                new java.util.ArrayList<java.util.List<java.util.Map.Entry<TestObjectId, TestObjectMeasurements>>>();
+        for (int bucket = 0; bucket < SeriesIndex.BUCKETS; ++bucket) {
+            buckets.add(new java.util.ArrayList<java.util.Map.Entry<TestObjectId, TestObjectMeasurements>>());
+        }
+        for (java.util.Map.Entry<TestObjectId, TestObjectMeasurements> entry : buildMeasurements.entrySet()) {
+            buckets.get(SeriesIndex.bucketOf(entry.getKey().toString())).add(entry);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new java.io.IOException("Failed to create " + directory);
+        }
+
+        java.util.List<ChangePoint> changePoints = new java.util.ArrayList<ChangePoint>();
+        for (int bucket = 0; bucket < SeriesIndex.BUCKETS; ++bucket) {
+            java.util.List<java.util.Map.Entry<TestObjectId, TestObjectMeasurements>> entries = buckets.get(bucket);
+            if (entries.isEmpty()) {
+                continue;
+            }
+            java.util.Map<String, java.util.Map<String, State>> states = readStates(bucket);
+            for (java.util.Map.Entry<TestObjectId, TestObjectMeasurements> entry : entries) {
+                String id = entry.getKey().toString();
+                java.util.Map<String, State> ofTestObject = states.get(id);
+                if (ofTestObject == null) {
+                    ofTestObject = new java.util.HashMap<String, State>();
+                    states.put(id, ofTestObject);
+                }
+                for (Measurement measurement : entry.getValue()) {
+                    if (!measurement.isNumeric()) {
+                        continue;
+                    }
+                    double value = measurement.getNumber();
+                    State state = ofTestObject.get(measurement.getName());
+                    if (state == null) {
+                        state = new State();
+                        ofTestObject.put(measurement.getName(), state);
+                    } else if (buildNumber <= state.lastBuild) {
+                        continue;
+                    }
+                    ChangePoint changePoint = state.add(id, measurement.getName(), buildNumber, value);
+                    if (changePoint != null) {
+                        changePoints.add(changePoint);
+                    }
+                }
+            }
+            writeStates(bucket, states);
+        }
+        if (!changePoints.isEmpty()) {
+            appendChangePoints(changePoints);
+        }
+        return changePoints;
+    }
+
+    private java.util.Map<String, java.util.Map<String, State>> readStates(int bucket) throws java.io.IOException {
+        java.util.Map<String, java.util.Map<String, State>> states =
+                new java.util.HashMap<String, java.util.Map<String, State>>();
+        java.io.File stateFile = getStateFile(bucket);
+        if (!stateFile.exists()) {
+            return states;
+        }
+        java.io.DataInputStream in = new java.io.DataInputStream(
+                new java.io.BufferedInputStream(new java.io.FileInputStream(stateFile)));
+        try {
+            if (in.readInt() != STATE_VERSION) {
+                LOGGER.warning("Ignoring " + stateFile + " of an unknown version");
+                return states;
+            }
+            int testCount = MeasurementStore.readVarInt(in);
+            for (int test = 0; test < testCount; ++test) {
+                String id = MeasurementStore.readString(in);
+                int seriesCount = MeasurementStore.readVarInt(in);
+                java.util.Map<String, State> ofTestObject = new java.util.HashMap<String, State>();
+                for (int series = 0; series < seriesCount; ++series) {
+                    String name = MeasurementStore.readString(in);
+                    ofTestObject.put(name, State.read(in));
+                }
+                states.put(id, ofTestObject);
+            }
+        } finally {
+            in.close();
+        }
+        return states;
+    }
+
+    private void writeStates(int bucket, java.util.Map<String, java.util.Map<String, State>> states)
+            throws java.io.IOException {
+        java.io.File stateFile = getStateFile(bucket);
+        java.io.File temporaryFile = new java.io.File(directory, stateFile.getName() + ".tmp");
+        java.io.DataOutputStream out = new java.io.DataOutputStream(
+                new java.io.BufferedOutputStream(new java.io.FileOutputStream(temporaryFile)));
+        try {
+            out.writeInt(STATE_VERSION);
+            MeasurementStore.writeVarInt(out, states.size());
+            for (java.util.Map.Entry<String, java.util.Map<String, State>> test : states.entrySet()) {
+                MeasurementStore.writeString(out, test.getKey());
+                MeasurementStore.writeVarInt(out, test.getValue().size());
+                for (java.util.Map.Entry<String, State> series : test.getValue().entrySet()) {
+                    MeasurementStore.writeString(out, series.getKey());
+                    series.getValue().write(out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        // Windows will not rename over an existing file.
+        if (!temporaryFile.renameTo(stateFile)) {
+            stateFile.delete();
+            if (!temporaryFile.renameTo(stateFile)) {
+                temporaryFile.delete();
+                throw new java.io.IOException("Failed to rename " + temporaryFile + " to " + stateFile);
+            }
+        }
+    }
+
+    private void appendChangePoints(java.util.List<ChangePoint> changePoints) throws java.io.IOException {
+        java.io.DataOutputStream out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(
+                new java.io.FileOutputStream(getLogFile(), true)));
+        try {
+            for (ChangePoint changePoint : changePoints) {
+                changePoint.write(out);
+            }
+        } finally {
+            out.close();
+        }
+        if (isLoaded()) {
+            // Keep what was read, rather than read the whole log again.
+            java.util.List<ChangePoint> all = new java.util.ArrayList<ChangePoint>(this.changePoints);
+            all.addAll(changePoints);
+            java.util.Map<String, java.util.List<ChangePoint>> bySeries =
+                    new java.util.HashMap<String, java.util.List<ChangePoint>>(changePointsBySeries);
+            for (ChangePoint changePoint : changePoints) {
+                String key = keyOf(changePoint.getTestObjectId(), changePoint.getName());
+                java.util.List<ChangePoint> ofSeries = bySeries.get(key);
+                ofSeries = ofSeries == null
+                        ? new java.util.ArrayList<ChangePoint>() : new java.util.ArrayList<ChangePoint>(ofSeries);
+                ofSeries.add(changePoint);
+                bySeries.put(key, java.util.Collections.unmodifiableList(ofSeries));
+            }
+            setLoaded(all, bySeries);
+        }
+    }
+
+    private static String keyOf(String testObjectId, String name) {
+        return testObjectId + '\0' + name;
+    }
+
+    /**
+     * @return Whether the change points read are still those of the log.
+     */
+    private boolean isLoaded() {
+        java.io.File logFile = getLogFile();
+        return changePoints != null && logFile.length() == logLength && logFile.lastModified() == logModified;
+    }
+
+    private void setLoaded(java.util.List<ChangePoint> changePoints,
+            java.util.Map<String, java.util.List<ChangePoint>> changePointsBySeries) {
+        java.io.File logFile = getLogFile();
+        this.changePoints = java.util.Collections.unmodifiableList(changePoints);
+        this.changePointsBySeries = changePointsBySeries;
+        logLength = logFile.length();
+        logModified = logFile.lastModified();
+    }
+
+    /**
+     * Forgets the change points read, after the log was replaced.
+     */
+    synchronized void reset() {
+        changePoints = null;
+        changePointsBySeries = null;
+    }
+
+    /**
+     * Reads the log, unless it has not changed since it was last read.
+     */
+    private void load() {
+        if (isLoaded()) {
+            return;
+        }
+        java.util.List<ChangePoint> all = new java.util.ArrayList<ChangePoint>();
+        java.io.File logFile = getLogFile();
+        if (logFile.exists()) {
+            try {
+                java.io.DataInputStream in = new java.io.DataInputStream(
+                        new java.io.BufferedInputStream(new java.io.FileInputStream(logFile)));
+                try {
+                    while (true) {
+                        all.add(ChangePoint.read(in));
+                    }
+                } catch (java.io.EOFException exception) {
+                    // The end, or a partly written change point.
+                } finally {
+                    in.close();
+                }
+            } catch (java.io.IOException exception) {
+                LOGGER.log(java.util.logging.Level.WARNING, "Failed to read " + logFile, exception);
+            }
+        }
+        java.util.Map<String, java.util.List<ChangePoint>> bySeries =
+                new java.util.HashMap<String, java.util.List<ChangePoint>>();
+        for (ChangePoint changePoint : all) {
+            String key = keyOf(changePoint.getTestObjectId(), changePoint.getName());
+            java.util.List<ChangePoint> ofSeries = bySeries.get(key);
+            if (ofSeries == null) {
+                ofSeries = new java.util.ArrayList<ChangePoint>();
+                bySeries.put(key, ofSeries);
+            }
+            ofSeries.add(changePoint);
+        }
+        for (java.util.Map.Entry<String, java.util.List<ChangePoint>> entry : bySeries.entrySet()) {
+            entry.setValue(java.util.Collections.unmodifiableList(entry.getValue()));
+        }
+        setLoaded(all, bySeries);
+    }
+
+    /**
+     * @return The latest change points found, newest first.
+     */
+    synchronized java.util.List<ChangePoint> getRecentChangePoints(int count) {
+        load();
+        java.util.List<ChangePoint> recent = new java.util.ArrayList<ChangePoint>(Math.min(count, changePoints.size()));
+        for (int index = changePoints.size() - 1; index >= 0 && recent.size() < count; --index) {
+            recent.add(changePoints.get(index));
+        }
+        return recent;
+    }
+
+    /**
+     * @return The change points of one measurement, oldest first.
+     */
+    synchronized java.util.List<ChangePoint> getChangePoints(String testObjectId, String name) {
+        load();
+        java.util.List<ChangePoint> ofSeries = changePointsBySeries.get(keyOf(testObjectId, name));
+        return ofSeries != null ? ofSeries : java.util.Collections.<ChangePoint>emptyList();
+    }
+}
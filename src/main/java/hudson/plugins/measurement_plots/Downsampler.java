@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * Reduces a series to at most a given number of points, such as the pixel
+ * width of a graph. The series is cut into buckets of consecutive points
+ * and only the smallest and largest value of each bucket are kept, so
+ * every peak and dip the full series would draw is still drawn.
+ * @author krwalker
+ */
+final class Downsampler {
+
+    private Downsampler() {
+    }
+
+    /**
+     * @param values The series, in order.
+     * @param maxPoints The most points to keep, at least four.
+     * @return The indexes of the kept values, in increasing order. The
+     * first and last values are always kept.
+     */
+    static int[] minMax(double[] values, int maxPoints) {
+        return minMax(new double[][] {values}, maxPoints);
+    }
+
+    /**
+     * Downsamples several series drawn at the same points, such as a
+     * median and the edges of its band, keeping the smallest and largest
+     * value of each series in each bucket.
+     * @param series The series, in order, all of the same length.
+     * @param maxPoints The most points to keep, at least two more than
+     * twice the number of series.
+     * @return The indexes of the kept points, in increasing order. The
+     * first and last points are always kept.
+     */
+    static int[] minMax(double[][] series, int maxPoints) {
+        int count = series[0].length;
+        if (count <= maxPoints) {
+            int[] all = new int[count];
+            for (int index = 0; index < count; ++index) {
+                all[index] = index;
+            }
+            return all;
+        }
+        // The first and last values are kept apart from the buckets.
+        int perBucket = 2 * series.length;
+        int buckets = Math.max(1, (maxPoints - 2) / perBucket);
+        int interior = count - 2;
+        int[] kept = new int[2 + perBucket * buckets];
+        int keptCount = 0;
+        kept[keptCount++] = 0;
+        int[] extremes = new int[perBucket];
+        for (int bucket = 0; bucket < buckets; ++bucket) {
+            int start = 1 + (int)((long)bucket * interior / buckets);
+            int end = 1 + (int)((long)(bucket + 1) * interior / buckets);
+            if (start == end) {
+                continue;
+            }
+            for (int one = 0; one < series.length; ++one) {
+                double[] values = series[one];
+                int min = start;
+                int max = start;
+                for (int index = start + 1; index < end; ++index) {
+                    if (values[index] < values[min]) {
+                        min = index;
+                    }
+                    if (values[index] > values[max]) {
+                        max = index;
+                    }
+                }
+                extremes[2 * one] = min;
+                extremes[2 * one + 1] = max;
+            }
+            // Keep them in the order they were measured, each once.
+            java.util.Arrays.sort(extremes);
+            for (int index = 0; index < perBucket; ++index) {
+                if (index == 0 || extremes[index] != extremes[index - 1]) {
+                    kept[keptCount++] = extremes[index];
+                }
+            }
+        }
+        kept[keptCount++] = count - 1;
+        return java.util.Arrays.copyOf(kept, keptCount);
+    }
+}
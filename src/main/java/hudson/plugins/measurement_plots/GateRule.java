@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * A quality gate rule of a job: the measurements whose names match a
+ * pattern may not get worse than a baseline by more than a tolerance.
+ * @author krwalker
+ */
+public class GateRule {
+
+    /** What a measurement is compared to. */
+    public enum Baseline {
+        /** The measurement in the last successful build. */
+        LAST_SUCCESSFUL,
+        /** The median of the measurement in the last builds. */
+        ROLLING_MEDIAN,
+        /** A fixed value. */
+        FIXED
+    }
+
+    /** Which way a measurement gets worse. */
+    public enum Direction {
+        INCREASE,
+        DECREASE,
+        EITHER
+    }
+
+    static final int DEFAULT_BUILDS = 5;
+
+    private final String pattern;
+    private final Baseline baseline;
+    private final int builds;
+    private final double value;
+    private final double tolerance;
+    private final boolean percent;
+    private final Direction direction;
+    private final boolean failing;
+
+    private transient java.util.regex.Pattern compiledPattern;
+
+    @org.kohsuke.stapler.DataBoundConstructor
+    public GateRule(String pattern, String baseline, int builds, double value,
+            double tolerance, boolean percent, String direction, boolean failing) {
+        this.pattern = pattern;
+        this.baseline = parse(Baseline.class, baseline, Baseline.LAST_SUCCESSFUL);
+        this.builds = builds >= 1 ? builds : DEFAULT_BUILDS;
+        this.value = value;
+        this.tolerance = Math.abs(tolerance);
+        this.percent = percent;
+        this.direction = parse(Direction.class, direction, Direction.INCREASE);
+        this.failing = failing;
+    }
+
+    private static <E extends Enum<E>> E parse(Class<E> type, String name, E defaultValue) {
+        try {
+            return name != null ? Enum.valueOf(type, name) : defaultValue;
+        } catch (IllegalArgumentException exception) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return The regular expression the names of the measurements must
+     * match entirely.
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    public Baseline getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * @return The number of builds of a rolling median.
+     */
+    public int getBuilds() {
+        return builds;
+    }
+
+    /**
+     * @return The fixed baseline.
+     */
+    public double getValue() {
+        return value;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * @return Whether the tolerance is a percentage of the baseline rather
+     * than an amount.
+     */
+    public boolean isPercent() {
+        return percent;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return Whether a build that breaks the rule fails rather than
+     * becoming unstable.
+     */
+    public boolean isFailing() {
+        return failing;
+    }
+
+    hudson.model.Result getResult() {
+        return failing ? hudson.model.Result.FAILURE : hudson.model.Result.UNSTABLE;
+    }
+
+    /**
+     * @return Whether the rule applies to measurements of the name. A
+     * pattern that is not a regular expression matches nothing.
+     */
+    synchronized boolean matches(String name) {
+        if (compiledPattern == null) {
+            try {
+                compiledPattern = java.util.regex.Pattern.compile(pattern != null ? pattern : "");
+            } catch (java.util.regex.PatternSyntaxException exception) {
+                return false;
+            }
+        }
+        return compiledPattern.matcher(name).matches();
+    }
+
+    /**
+     * @return How much worse than the baseline the value may be.
+     */
+    double getAllowance(double baselineValue) {
+        return percent ? Math.abs(baselineValue) * tolerance / 100 : tolerance;
+    }
+
+    /**
+     * @return How much worse than the baseline the value is, which is
+     * negative if it is better.
+     */
+    double getWorsening(double baselineValue, double actual) {
+        switch (direction) {
+        case DECREASE:
+            return baselineValue - actual;
+        case EITHER:
+            return Math.abs(actual - baselineValue);
+        default:
+            return actual - baselineValue;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder(pattern);
+        string.append(" within ").append(tolerance).append(percent ? "%" : "").append(" of ");
+        switch (baseline) {
+        case FIXED:
+            string.append(value);
+            break;
+        case ROLLING_MEDIAN:
+            string.append("the median of the last ").append(builds).append(" builds");
+            break;
+        default:
+            string.append("the last successful build");
+            break;
+        }
+        return string.toString();
+    }
+}
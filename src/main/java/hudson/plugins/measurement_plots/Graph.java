@@ -30,10 +30,26 @@ package hudson.plugins.measurement_plots;
  */
 public abstract class Graph extends hudson.util.Graph {
 
+    static final int WIDTH = 600;
+    static final int HEIGHT = 300;
+    static final int MAX_SIZE = 2000;
+
+    /** The rows of a graph of repeated measurements. */
+    static final String MEDIAN = "median";
+    static final String P5 = "p5";
+    static final String P95 = "p95";
+
     final String title;
 
+    // The width being rendered, which bounds the points worth drawing.
+    private int renderWidth = WIDTH;
+    // The root URL the image map links are made absolute with. Graphs are
+    // rendered off the request thread, where it is not known unless
+    // configured, so it is worked out before.
+    private String rootUrl;
+
     protected Graph(String title, java.util.Calendar timestamp) {
-        super(timestamp, 600, 300);
+        super(timestamp, WIDTH, HEIGHT);
         this.title = title;
     }
 
@@ -52,13 +68,185 @@ public abstract class Graph extends hudson.util.Graph {
     // GraphLabel is non-public, but exported through public API.
     protected abstract hudson.util.DataSetBuilder<String, GraphLabel> getDataSetBuilder();
 
+    /**
+     * @return The job whose builds the graph shows, or null if the rendered
+     * graph should not be cached.
+     */
+    protected hudson.model.Job<?, ?> getJob() {
+        return null;
+    }
+
+    /**
+     * @return What identifies the graph among the job's graphs, given the
+     * same builds.
+     */
+    protected String getCacheKey() {
+        return null;
+    }
+
+    /**
+     * @return The numbers of the builds to mark with a line, such as the
+     * builds where a measurement changed.
+     */
+    protected java.util.Set<Integer> getMarkedBuilds() {
+        return java.util.Collections.emptySet();
+    }
+
+    /**
+     * @return The label of the value axis, such as the unit of the values,
+     * or null if there is none.
+     */
+    protected String getRangeAxisLabel() {
+        return null;
+    }
+
+    /**
+     * @return The unit every one of the units is converted to, or null if
+     * they have none or different ones.
+     */
+    static String commonUnit(java.util.Collection<String> units) {
+        String common = null;
+        for (String unit : units) {
+            if (unit == null || (common != null && !common.equals(unit))) {
+                return null;
+            }
+            common = unit;
+        }
+        return common;
+    }
+
+    @Override
+    public void doPng(org.kohsuke.stapler.StaplerRequest request,
+            org.kohsuke.stapler.StaplerResponse response) throws java.io.IOException {
+        GraphCache.Rendered rendered = render(request, response);
+        if (rendered != null) {
+            response.setContentType("image/png");
+            response.setContentLength(rendered.png.length);
+            java.io.OutputStream out = response.getOutputStream();
+            out.write(rendered.png);
+            out.close();
+        }
+    }
+
+    @Override
+    public void doMap(org.kohsuke.stapler.StaplerRequest request,
+            org.kohsuke.stapler.StaplerResponse response) throws java.io.IOException {
+        GraphCache.Rendered rendered = render(request, response);
+        if (rendered != null) {
+            response.setContentType("text/plain;charset=UTF-8");
+            response.getWriter().println(rendered.map);
+        }
+    }
+
+    /**
+     * Renders the graph or takes it from the GraphCache, answering
+     * conditional requests for cached graphs.
+     * @return The graph or null if the browser's copy is current and a 304
+     * was sent.
+     */
+    private GraphCache.Rendered render(org.kohsuke.stapler.StaplerRequest request,
+            org.kohsuke.stapler.StaplerResponse response) throws java.io.IOException {
+        int width = getSize(request, "width", WIDTH);
+        int height = getSize(request, "height", HEIGHT);
+        rootUrl = hudson.model.Hudson.getInstance().getRootUrl();
+        hudson.model.Job<?, ?> job = getJob();
+        if (job == null) {
+            return schedule(null, width, height);
+        }
+        String key = GraphCache.keyOf(job, getCacheKey() + '\0' + width + 'x' + height);
+        if (GraphCache.checkNotModified(request, response, job, key)) {
+            return null;
+        }
+
+        GraphCache.Rendered rendered = GraphCache.get().get(key);
+        if (rendered == null) {
+            rendered = schedule(key, width, height);
+        }
+        if (rendered == RenderScheduler.getPlaceholder()) {
+            response.setHeader("Cache-Control", "no-cache");
+        } else {
+            GraphCache.setValidators(response, job, key);
+        }
+        return rendered;
+    }
+
+    /**
+     * Renders the graph on the RenderScheduler, caching it under the key
+     * if there is one.
+     */
+    private GraphCache.Rendered schedule(final String key, final int width, final int height)
+            throws java.io.IOException {
+        return RenderScheduler.get().render(key, new java.util.concurrent.Callable<GraphCache.Rendered>() {
+            public GraphCache.Rendered call() throws java.io.IOException {
+                GraphCache.Rendered rendered = render(width, height);
+                if (key != null) {
+                    GraphCache.get().put(key, rendered);
+                }
+                return rendered;
+            }
+        });
+    }
+
+    private GraphCache.Rendered render(int width, int height) throws java.io.IOException {
+        renderWidth = width;
+        org.jfree.chart.ChartRenderingInfo info = new org.jfree.chart.ChartRenderingInfo();
+        java.awt.image.BufferedImage image = createGraph().createBufferedImage(width, height, info);
+        java.io.ByteArrayOutputStream png = new java.io.ByteArrayOutputStream();
+        org.jfree.chart.ChartUtilities.writeBufferedImageAsPNG(png, image);
+        return new GraphCache.Rendered(png.toByteArray(), org.jfree.chart.ChartUtilities.getImageMap("map", info));
+    }
+
+    /**
+     * @return The width of the graph being rendered, in pixels.
+     */
+    protected int getRenderWidth() {
+        return renderWidth;
+    }
+
+    /**
+     * @return The size asked for, within reason, or the default size.
+     */
+    private static int getSize(org.kohsuke.stapler.StaplerRequest request, String name, int defaultSize) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return defaultSize;
+        }
+        try {
+            return Math.max(1, Math.min(MAX_SIZE, Integer.parseInt(value)));
+        } catch (NumberFormatException exception) {
+            return defaultSize;
+        }
+    }
+
+    /**
+     * Marks each marked build, or the next build shown if it is not.
+     */
+    void addMarkers(org.jfree.chart.plot.CategoryPlot plot, org.jfree.data.category.CategoryDataset dataset) {
+        java.util.Set<Integer> marked = getMarkedBuilds();
+        if (marked.isEmpty()) {
+            return;
+        }
+        java.util.SortedSet<Integer> pending = new java.util.TreeSet<Integer>(marked);
+        for (int column = 0; column < dataset.getColumnCount() && !pending.isEmpty(); ++column) {
+            GraphLabel label = (GraphLabel) dataset.getColumnKey(column);
+            int number = label.getBuildNumber();
+            if (pending.first() <= number) {
+                pending.headSet(number + 1).clear();
+                org.jfree.chart.plot.CategoryMarker marker = new org.jfree.chart.plot.CategoryMarker(
+                        label, java.awt.Color.RED, new java.awt.BasicStroke(1.0f));
+                marker.setDrawAsLine(true);
+                plot.addDomainMarker(marker, org.jfree.ui.Layer.FOREGROUND);
+            }
+        }
+    }
+
     protected org.jfree.chart.JFreeChart createGraph() {
         final org.jfree.data.category.CategoryDataset dataset = getDataSetBuilder().build();
 
         final org.jfree.chart.JFreeChart chart = org.jfree.chart.ChartFactory.createStackedAreaChart(
                 title, // chart title
                 null, // unused
-                null, // range axis label
+                getRangeAxisLabel(), // range axis label
                 dataset, // data
                 org.jfree.chart.plot.PlotOrientation.VERTICAL, // orientation
                 false, // include legend
@@ -107,7 +295,7 @@ public abstract class Graph extends hudson.util.Graph {
                     org.jfree.data.category.CategoryDataset dataset,
                     int row, int column) {
                 GraphLabel label = (GraphLabel) dataset.getColumnKey(column);
-                return label.getUrl();
+                return rootUrl + label.getPath();
             }
 
             @Override
@@ -124,39 +312,145 @@ public abstract class Graph extends hudson.util.Graph {
         // crop extra space around the graph
         plot.setInsets(new org.jfree.ui.RectangleInsets(0, 0, 0, 5.0));
 
+        addMarkers(plot, dataset);
+
+        return chart;
+    }
+
+    /**
+     * @return A graph of the median of repeated measurements between lines
+     * at the 5th and 95th percentiles, from a dataset with the rows
+     * {@link #MEDIAN}, {@link #P5} and {@link #P95}.
+     */
+    protected org.jfree.chart.JFreeChart createBandGraph() {
+        org.jfree.data.category.CategoryDataset dataset = getDataSetBuilder().build();
+        org.jfree.chart.JFreeChart chart = createLineGraph(title, getRangeAxisLabel(), dataset, false);
+        org.jfree.chart.plot.CategoryPlot plot = chart.getCategoryPlot();
+        org.jfree.chart.renderer.category.LineAndShapeRenderer renderer =
+                (org.jfree.chart.renderer.category.LineAndShapeRenderer) plot.getRenderer();
+        java.awt.Color band = new java.awt.Color(0x72, 0x9f, 0xcf);
+        for (int row = 0; row < dataset.getRowCount(); ++row) {
+            if (MEDIAN.equals(dataset.getRowKey(row))) {
+                renderer.setSeriesPaint(row, hudson.util.ColorPalette.BLUE);
+            } else {
+                renderer.setSeriesPaint(row, band);
+                renderer.setSeriesStroke(row, new java.awt.BasicStroke(1.0f));
+                renderer.setSeriesShapesVisible(row, false);
+            }
+        }
+        addMarkers(plot, dataset);
+        return chart;
+    }
+
+    /**
+     * @return A line graph with a line for each row of the dataset.
+     */
+    org.jfree.chart.JFreeChart createLineGraph(String title, String rangeAxisLabel,
+            org.jfree.data.category.CategoryDataset dataset, boolean legend) {
+        final org.jfree.chart.JFreeChart chart = org.jfree.chart.ChartFactory.createLineChart(
+                title, // chart title
+                null, // unused
+                rangeAxisLabel, // range axis label
+                dataset, // data
+                org.jfree.chart.plot.PlotOrientation.VERTICAL, // orientation
+                legend, // include legend
+                true, // tooltips
+                false // urls
+                );
+
+        chart.setBackgroundPaint(java.awt.Color.white);
+        if (legend) {
+            chart.getLegend().setPosition(org.jfree.ui.RectangleEdge.BOTTOM);
+        }
+
+        final org.jfree.chart.plot.CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(java.awt.Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(java.awt.Color.black);
+
+        org.jfree.chart.axis.CategoryAxis domainAxis = new hudson.util.ShiftedCategoryAxis(null);
+        plot.setDomainAxis(domainAxis);
+        domainAxis.setCategoryLabelPositions(org.jfree.chart.axis.CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+
+        final org.jfree.chart.axis.NumberAxis rangeAxis = (org.jfree.chart.axis.NumberAxis) plot.getRangeAxis();
+        hudson.util.ChartUtil.adjustChebyshev(dataset, rangeAxis);
+        rangeAxis.setAutoRange(true);
+
+        org.jfree.chart.renderer.category.LineAndShapeRenderer renderer =
+                new org.jfree.chart.renderer.category.LineAndShapeRenderer(true, true);
+        renderer.setBaseStroke(new java.awt.BasicStroke(2.0f));
+        renderer.setBaseItemURLGenerator(new org.jfree.chart.urls.CategoryURLGenerator() {
+            public String generateURL(org.jfree.data.category.CategoryDataset dataset, int row, int column) {
+                return rootUrl + ((GraphLabel) dataset.getColumnKey(column)).getPath();
+            }
+        });
+        renderer.setBaseToolTipGenerator(new org.jfree.chart.labels.CategoryToolTipGenerator() {
+            public String generateToolTip(org.jfree.data.category.CategoryDataset dataset, int row, int column) {
+                GraphLabel label = (GraphLabel) dataset.getColumnKey(column);
+                return dataset.getRowKey(row) + " " + label.getToolTip() + " : " + dataset.getValue(row, column);
+            }
+        });
+        plot.setRenderer(renderer);
+
+        // crop extra space around the graph
+        plot.setInsets(new org.jfree.ui.RectangleInsets(0, 0, 0, 5.0));
+
         return chart;
     }
 }
 
 class GraphLabel implements Comparable<GraphLabel> {
 
-    private Measurement measurement;
-    String url;
+    // Only what the graph shows, so that a graph keeps no builds in memory.
+    private final int buildNumber;
+    private final String name;
+    // Relative to the root URL.
+    private final String path;
+    private final String toolTip;
 
-    public GraphLabel(Measurement measurement) {
-        this.measurement = measurement;
-        this.url = null;
+    public GraphLabel(HistoryPoint point) {
+        this.buildNumber = point.getBuildNumber();
+        this.name = nameOf(point.getDisplayName(), point.getNodeName());
+        this.path = point.getPath();
+        this.toolTip = point.getDisplayName() + " : " + point.getValue();
     }
 
-    private Measurement getMeasurement() {
-        return measurement;
+    /**
+     * The label of a build in a graph of several measurements.
+     */
+    public GraphLabel(hudson.model.AbstractBuild<?, ?> build) {
+        this.buildNumber = build.getNumber();
+        this.name = nameOf(build.getDisplayName(), build.getBuiltOnStr());
+        this.path = build.getUrl();
+        this.toolTip = build.getDisplayName();
     }
 
-    public String getUrl() {
-        if (this.url == null) {
-            this.url = getMeasurement().getTestAction().getAbsoluteTestObjectUrl().toString();
-        }
-        return url;
+    private static String nameOf(String buildName, String nodeName) {
+        return nodeName != null ? buildName + ' ' + nodeName : buildName;
+    }
+
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    /**
+     * @return The URL the label links to, relative to the root URL.
+     */
+    public String getPath() {
+        return path;
     }
 
     public String getToolTip() {
-        return  getMeasurement().getBuildName() + " : " +
-                getMeasurement().getValue();
+        return toolTip;
     }
 
     public int compareTo(GraphLabel that) {
-        return  this.getMeasurement().getBuildNumber() -
-                that.getMeasurement().getBuildNumber();
+        return  this.buildNumber -
+                that.buildNumber;
     }
 
     @Override
@@ -165,7 +459,7 @@ class GraphLabel implements Comparable<GraphLabel> {
             return false;
         }
         GraphLabel that = (GraphLabel) object;
-        return this.getMeasurement() == that.getMeasurement();
+        return this.buildNumber == that.buildNumber;
     }
 
     public java.awt.Color getColor() {
@@ -174,16 +468,11 @@ class GraphLabel implements Comparable<GraphLabel> {
 
     @Override
     public int hashCode() {
-        return getMeasurement().hashCode();
+        return buildNumber;
     }
 
     @Override
     public String toString() {
-        String buildName = getMeasurement().getBuildName();
-        String nodeName = getMeasurement().getNodeName();
-        if (nodeName != null) {
-            buildName += ' ' + nodeName;
-        }
-        return buildName;
+        return name;
     }
 }
@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * A plugin-wide cache of rendered graphs, so that graphs which are
+ * requested again, such as by dashboards that refresh, are not rendered
+ * again until a build of their job completes or is deleted.
+ *
+ * Entries are evicted least recently used first once their size exceeds
+ * {@link #MAX_BYTES}.
+ * @author krwalker
+ */
+public class GraphCache {
+
+    static final long MAX_BYTES = 16L << 20;
+
+    private static final GraphCache INSTANCE = new GraphCache();
+
+    /** A graph rendered as both the image and its image map. */
+    static class Rendered {
+        final byte[] png;
+        final String map;
+
+        Rendered(byte[] png, String map) {
+            this.png = png;
+            this.map = map;
+        }
+
+        long size() {
+            return png.length + 2L * map.length();
+        }
+    }
+
+    // Iterates from least to most recently used.
+    private final java.util.LinkedHashMap<String, Rendered> entries =
+            new java.util.LinkedHashMap<String, Rendered>(16, 0.75f, true);
+    private long size = 0;
+
+    /** When the graphs of each job last changed, in whole seconds. */
+    private final java.util.Map<String, Long> lastModified = new java.util.HashMap<String, Long>();
+    private final long started = roundToSeconds(System.currentTimeMillis());
+
+    static GraphCache get() {
+        return INSTANCE;
+    }
+
+    private static long roundToSeconds(long millis) {
+        return millis / 1000 * 1000;
+    }
+
+    /**
+     * @param job The key of the job, see {@link #keyOf}.
+     * @return When the job's graphs last changed, as far as this cache
+     * knows. This is when Hudson started unless a build completed or was
+     * deleted since.
+     */
+    synchronized long getLastModified(String job) {
+        Long time = lastModified.get(job);
+        return time != null ? time : started;
+    }
+
+    synchronized Rendered get(String key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(String key, Rendered rendered) {
+        Rendered previous = entries.put(key, rendered);
+        if (previous != null) {
+            size -= previous.size();
+        }
+        size += rendered.size();
+        java.util.Iterator<Rendered> iterator = entries.values().iterator();
+        while (size > MAX_BYTES && iterator.hasNext()) {
+            size -= iterator.next().size();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops the graphs of a job and moves its modification time on, so
+     * that browsers fetch them again.
+     */
+    synchronized void invalidate(String job) {
+        // Last-Modified only has whole seconds, so never reuse one.
+        long now = Math.max(roundToSeconds(System.currentTimeMillis()), getLastModified(job) + 1000);
+        lastModified.put(job, now);
+        String prefix = job + '\0';
+        java.util.Iterator<java.util.Map.Entry<String, Rendered>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            java.util.Map.Entry<String, Rendered> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().size();
+                iterator.remove();
+            }
+        }
+    }
+
+    static String keyOf(hudson.model.Job<?, ?> job) {
+        return job.getRootDir().getPath();
+    }
+
+    /**
+     * @param key What identifies the graph among the job's graphs.
+     * @return The key of a graph of the job as of its newest completed build.
+     */
+    static String keyOf(hudson.model.Job<?, ?> job, String key) {
+        hudson.model.Run<?, ?> newest = job.getLastCompletedBuild();
+        return keyOf(job) + '\0' + key + '\0' + (newest != null ? newest.getNumber() : 0);
+    }
+
+    /**
+     * Answers a conditional request for a response drawn from a job's
+     * builds if the browser's copy is current.
+     * @param key The key of the response, see {@link #keyOf(hudson.model.Job, String)}.
+     * @return Whether a 304 was sent, so nothing more should be.
+     */
+    static boolean checkNotModified(org.kohsuke.stapler.StaplerRequest request,
+            org.kohsuke.stapler.StaplerResponse response, hudson.model.Job<?, ?> job, String key) {
+        long lastModified = get().getLastModified(keyOf(job));
+        String eTag = eTagOf(key, lastModified);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        boolean current = ifNoneMatch != null
+                ? ifNoneMatch.contains(eTag)
+                : request.getDateHeader("If-Modified-Since") >= lastModified;
+        if (current) {
+            setValidators(response, eTag, lastModified);
+            response.setStatus(javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return current;
+    }
+
+    /**
+     * Sets the ETag and Last-Modified headers of a response drawn from a
+     * job's builds, so that the browser can ask whether it changed.
+     */
+    static void setValidators(org.kohsuke.stapler.StaplerResponse response, hudson.model.Job<?, ?> job, String key) {
+        long lastModified = get().getLastModified(keyOf(job));
+        setValidators(response, eTagOf(key, lastModified), lastModified);
+    }
+
+    private static void setValidators(org.kohsuke.stapler.StaplerResponse response, String eTag, long lastModified) {
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", "max-age=0, must-revalidate");
+    }
+
+    private static String eTagOf(String key, long lastModified) {
+        return '"' + Integer.toHexString(key.hashCode()) + '-' + Long.toHexString(lastModified) + '"';
+    }
+
+    /**
+     * Invalidates the graphs of a job whenever one of its builds completes
+     * or is deleted.
+     */
+    @hudson.Extension
+    public static class Invalidator extends hudson.model.listeners.RunListener<hudson.model.Run> {
+
+        public Invalidator() {
+            super(hudson.model.Run.class);
+        }
+
+        @Override
+        public void onCompleted(hudson.model.Run run, hudson.model.TaskListener listener) {
+            get().invalidate(keyOf(run.getParent()));
+        }
+
+        @Override
+        public void onDeleted(hudson.model.Run run) {
+            get().invalidate(keyOf(run.getParent()));
+        }
+    }
+}
@@ -28,14 +28,56 @@ package hudson.plugins.measurement_plots;
  * The history of a measurement.
  * @author krwalker
  */
+@org.kohsuke.stapler.export.ExportedBean(defaultVisibility = 2)
 public class History {
 
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(History.class.getName());
+
+    /** The number of newest measurements shown when no window is asked for. */
+    static final int DEFAULT_LAST = 200;
+
+    /** The number of measurements in a page of the table. */
+    static final int PAGE_SIZE = 50;
+
     transient private Measurement measurement;
-    transient private java.util.List<Measurement> measurements;
+    transient private java.util.List<HistoryPoint> points;
+
+    // The window of builds, from the query parameters "from", "to" and "last".
+    // A last of zero shows every measurement in the build range.
+    transient private int from = 0;
+    transient private int to = Integer.MAX_VALUE;
+    transient private int last = DEFAULT_LAST;
+    transient private int page = 1;
+    // Whether graphs of more measurements than pixels are downsampled.
+    transient private boolean downsample = true;
+    // Whether the page shows the server-rendered image, from "render=server".
+    transient private boolean serverRendered = false;
 
     public History(Measurement measurement) {
         this.measurement = measurement;
-        this.measurements = null;
+        this.points = null;
+        org.kohsuke.stapler.StaplerRequest request = org.kohsuke.stapler.Stapler.getCurrentRequest();
+        if (request != null) {
+            from = Math.max(0, getParameter(request, "from", from));
+            to = getParameter(request, "to", to);
+            last = Math.max(0, getParameter(request, "last", last));
+            page = Math.max(1, getParameter(request, "page", page));
+            downsample = !"false".equals(request.getParameter("downsample"));
+            serverRendered = "server".equals(request.getParameter("render"));
+        }
+    }
+
+    private static int getParameter(org.kohsuke.stapler.StaplerRequest request, String name, int defaultValue) {
+        String value = hudson.Util.fixEmptyAndTrim(request.getParameter(name));
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException exception) {
+            return defaultValue;
+        }
     }
     
     public String getUrlName() {
@@ -50,49 +92,390 @@ public class History {
         return measurement;
     }
 
-    private void collectMeasurements() {
-		measurements = new java.util.ArrayList<Measurement>();
-		for (hudson.model.AbstractBuild<?,?> build: getMeasurement().getBuild().getParent().getBuilds()) {
-			if (build.isBuilding()) continue;
-			Measurement candidate = getMeasurement().getMeasurementInBuild(build);
-			if (candidate != null) {
-				measurements.add(candidate);
-			}
-		}
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    /**
+     * @return Whether the window runs to the latest build.
+     */
+    public boolean isToLatest() {
+        return to == Integer.MAX_VALUE;
+    }
+
+    public int getLast() {
+        return last;
+    }
+
+    /**
+     * @return The query parameters of the window, without the page, or an
+     * empty string for the default window.
+     */
+    public String getWindowQuery() {
+        StringBuilder query = new StringBuilder();
+        if (from != 0) {
+            query.append("&from=").append(from);
+        }
+        if (to != Integer.MAX_VALUE) {
+            query.append("&to=").append(to);
+        }
+        if (last != DEFAULT_LAST) {
+            query.append("&last=").append(last);
+        }
+        if (!downsample) {
+            query.append("&downsample=false");
+        }
+        return query.length() == 0 ? "" : query.substring(1);
+    }
+
+    /**
+     * @return The query string of the window, for the graph URLs.
+     */
+    public String getQuery() {
+        String windowQuery = getWindowQuery();
+        return windowQuery.length() == 0 ? "" : '?' + windowQuery;
+    }
+
+    /**
+     * @return The query string of a page of the table in this window.
+     */
+    public String getPageQuery(int page) {
+        String windowQuery = getWindowQuery();
+        return '?' + windowQuery + (windowQuery.length() == 0 ? "" : "&") + "page=" + page
+                + (serverRendered ? "&render=server" : "");
+    }
+
+    /**
+     * Reads the measurements of the builds the job's SeriesIndex covers from
+     * the index, and only loads the test results of older builds. Builds are
+     * visited newest first, stopping once the window is full. Only a
+     * HistoryPoint of each measurement is kept.
+     */
+    private void collectPoints() {
+        points = new java.util.ArrayList<HistoryPoint>();
+        hudson.model.AbstractProject<?, ?> project = getMeasurement().getBuild().getParent();
+        SeriesIndex index = SeriesIndex.of(project);
+        int indexedSince = index.getIndexedSince();
+        java.util.Map<Integer, Measurement> series = java.util.Collections.emptyMap();
+        if (indexedSince != Integer.MAX_VALUE && indexedSince <= to) {
+            try {
+                series = index.read(getMeasurement().getTestObject().getId(), getMeasurement().getName());
+            } catch (java.io.IOException exception) {
+                LOGGER.log(java.util.logging.Level.WARNING, "Failed to read the measurement index of "
+                        + project.getFullName(), exception);
+                indexedSince = Integer.MAX_VALUE;
+            }
+        }
+        String testObjectPath = getMeasurement().getTestAction().getTestObjectPath();
+        for (hudson.model.AbstractBuild<?, ?> build : project.getBuilds()) {
+            if (build.getNumber() > to) continue;
+            if (build.getNumber() < from) break;
+            if (build.isBuilding()) continue;
+            Measurement candidate = null;
+            if (build.getNumber() >= indexedSince) {
+                Measurement indexed = series.get(build.getNumber());
+                if (indexed != null) {
+                    candidate = new Measurement(indexed, build, testObjectPath);
+                }
+            } else {
+                candidate = getMeasurement().getMeasurementInBuild(build);
+            }
+            if (candidate != null) {
+                points.add(new HistoryPoint(candidate));
+                if (points.size() == last) break;
+            }
+        }
     }
 
     /**
-     * @return The list of measurements in this measurement's history.
-     * The returned list may be empty.
+     * @return The points of this measurement's history within the window,
+     * newest first. The returned list may be empty.
      */
-	public java.util.List<Measurement> getMeasurements() {
-		if (measurements == null) {
-            collectMeasurements();
+    public java.util.List<HistoryPoint> getPoints() {
+        if (points == null) {
+            collectPoints();
         }
-        return measurements;
-	}
+        return points;
+    }
+
+    /**
+     * @return The page of the table, counting from one.
+     */
+    public int getPage() {
+        return Math.min(page, getPageCount());
+    }
+
+    public int getPageCount() {
+        return Math.max(1, (getPoints().size() + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * @return The points shown on the current page of the table.
+     */
+    public java.util.List<HistoryPoint> getPagePoints() {
+        java.util.List<HistoryPoint> all = getPoints();
+        int start = (getPage() - 1) * PAGE_SIZE;
+        return all.subList(start, Math.min(all.size(), start + PAGE_SIZE));
+    }
 
     /**
      * @return The graph for this measurement or null if there is no graph.
      */
     public Graph getGraph() {
         return new Graph(getMeasurement().getName(), getMeasurement().getBuildTimestamp()) {
+            @Override
+            protected hudson.model.Job<?, ?> getJob() {
+                return getMeasurement().getBuild().getParent();
+            }
+
+            @Override
+            protected String getCacheKey() {
+                return History.this.getCacheKey();
+            }
+
+            @Override
+            protected java.util.Set<Integer> getMarkedBuilds() {
+                return getChangePointBuilds();
+            }
+
+            @Override
+            protected String getRangeAxisLabel() {
+                return getUnit();
+            }
+
             @Override
             protected hudson.util.DataSetBuilder<String, GraphLabel> getDataSetBuilder() {
                 hudson.util.DataSetBuilder<String, GraphLabel> data =
                         new hudson.util.DataSetBuilder<String, GraphLabel>();
-                for (final Measurement measurement : getMeasurements()) {
-                    //data.add(value, rowKey, columnKey);
-                    Double value = null;
-                    try {
-                        value = Double.valueOf(measurement.getValue());
-                    } catch (NumberFormatException exception) {
-                        value = null;
-                    }
-                    data.add(value, "", new GraphLabel(measurement));
+                java.util.List<HistoryPoint> points = getPoints();
+                boolean banded = hasSamples();
+                if (downsample && points.size() > getRenderWidth()) {
+                    addDownsampled(data, points, banded, getRenderWidth());
+                    return data;
+                }
+                for (HistoryPoint point : points) {
+                    add(data, point, banded);
                 }
                 return data;
             }
+
+            @Override
+            protected org.jfree.chart.JFreeChart createGraph() {
+                return hasSamples() ? createBandGraph() : super.createGraph();
+            }
         };
     }
+
+    /**
+     * @return The unit the numeric values in the window are in, or null if
+     * they have none or different ones.
+     */
+    public String getUnit() {
+        java.util.Set<String> units = new java.util.HashSet<String>();
+        for (HistoryPoint point : getPoints()) {
+            if (point.isNumeric()) {
+                units.add(point.getUnit());
+            }
+        }
+        return Graph.commonUnit(units);
+    }
+
+    /**
+     * @return Whether any measurement in the window was printed more than
+     * once.
+     */
+    public boolean hasSamples() {
+        for (HistoryPoint point : getPoints()) {
+            if (point.getSamples() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a point to the graph, with its 5th and 95th percentiles if the
+     * graph is banded. Measurements printed once have no band, and those
+     * that are not numbers leave a gap.
+     */
+    private static void add(hudson.util.DataSetBuilder<String, GraphLabel> data, HistoryPoint point,
+            boolean banded) {
+        GraphLabel label = new GraphLabel(point);
+        Double value = point.isNumeric() ? Double.valueOf(point.getNumber()) : null;
+        if (!banded) {
+            //data.add(value, rowKey, columnKey);
+            data.add(value, "", label);
+            return;
+        }
+        Samples samples = point.getSamples();
+        data.add(value, Graph.MEDIAN, label);
+        data.add(samples != null ? Double.valueOf(samples.getP5()) : value, Graph.P5, label);
+        data.add(samples != null ? Double.valueOf(samples.getP95()) : value, Graph.P95, label);
+    }
+
+    /**
+     * @return The builds where the ChangePointDetector found this
+     * measurement changed.
+     */
+    java.util.Set<Integer> getChangePointBuilds() {
+        java.util.Set<Integer> builds = new java.util.HashSet<Integer>();
+        ChangePointDetector detector = ChangePointDetector.of(getMeasurement().getBuild().getParent());
+        for (ChangePoint changePoint : detector.getChangePoints(
+                getMeasurement().getTestObject().getId(), getMeasurement().getName())) {
+            builds.add(changePoint.getBuildNumber());
+        }
+        return builds;
+    }
+
+    /**
+     * @return What identifies this history among the job's histories.
+     */
+    String getCacheKey() {
+        return getMeasurement().getTestObject().getId() + '\0' + getMeasurement().getName()
+                + '\0' + getWindowQuery();
+    }
+
+    /**
+     * Serves the measurements in the window as JSON, oldest first, for
+     * drawing the graph in the browser.
+     */
+    public void doSeries(org.kohsuke.stapler.StaplerRequest request,
+            org.kohsuke.stapler.StaplerResponse response) throws java.io.IOException {
+        hudson.model.Job<?, ?> job = getMeasurement().getBuild().getParent();
+        String key = GraphCache.keyOf(job, getCacheKey() + "\0series");
+        if (GraphCache.checkNotModified(request, response, job, key)) {
+            return;
+        }
+        net.sf.json.JSONArray jsonPoints = new net.sf.json.JSONArray();
+        java.util.List<HistoryPoint> points = getPoints();
+        java.util.Set<Integer> changePointBuilds = getChangePointBuilds();
+        for (int index = points.size() - 1; index >= 0; --index) {
+            HistoryPoint point = points.get(index);
+            net.sf.json.JSONObject jsonPoint = new net.sf.json.JSONObject();
+            jsonPoint.element("build", point.getBuildNumber());
+            jsonPoint.element("name", point.getDisplayName());
+            jsonPoint.element("timestamp", point.getTimestamp());
+            jsonPoint.element("node", point.getNodeName());
+            // JSON has no NaN or infinity.
+            if (point.isNumeric()) {
+                jsonPoint.element("value", point.getNumber());
+            } else {
+                jsonPoint.element("value", net.sf.json.JSONNull.getInstance());
+            }
+            jsonPoint.element("text", point.getValue() != null ? point.getValue() : "");
+            jsonPoint.element("url", point.getUrl());
+            jsonPoint.element("changePoint", changePointBuilds.contains(point.getBuildNumber()));
+            Samples samples = point.getSamples();
+            if (samples != null) {
+                jsonPoint.element("count", samples.getCount());
+                jsonPoint.element("low", samples.getP5());
+                jsonPoint.element("high", samples.getP95());
+            }
+            jsonPoints.element(jsonPoint);
+        }
+        net.sf.json.JSONObject series = new net.sf.json.JSONObject();
+        series.element("name", getMeasurement().getName());
+        String unit = getUnit();
+        if (unit != null) {
+            series.element("unit", unit);
+        }
+        series.element("points", jsonPoints);
+        GraphCache.setValidators(response, job, key);
+        response.setContentType("application/json;charset=UTF-8");
+        java.io.PrintWriter writer = response.getWriter();
+        series.write(writer);
+        writer.close();
+    }
+
+    public hudson.model.Api getApi() {
+        return new hudson.model.Api(this);
+    }
+
+    /**
+     * @return The statistics of the numeric values in the window, or null
+     * if there are none.
+     */
+    @org.kohsuke.stapler.export.Exported
+    public MeasurementStatistics getStatistics() {
+        MeasurementStatistics statistics = new MeasurementStatistics();
+        for (HistoryPoint point : getPoints()) {
+            if (point.isNumeric()) {
+                statistics.add(point.getNumber());
+            }
+        }
+        return statistics.getCount() > 0 ? statistics : null;
+    }
+
+    private StatisticsStore.Entry getAllBuildsEntry() {
+        return StatisticsStore.of(getMeasurement().getBuild().getParent()).get(
+                getMeasurement().getTestObject().getId(), getMeasurement().getName());
+    }
+
+    /**
+     * @return The statistics of the numeric values in every build the job's
+     * SeriesIndex covers, or null if it covers none or there are none.
+     */
+    @org.kohsuke.stapler.export.Exported
+    public MeasurementStatistics getAllBuildsStatistics() {
+        StatisticsStore.Entry entry = getAllBuildsEntry();
+        return entry != null && entry.statistics.getCount() > 0 ? entry.statistics : null;
+    }
+
+    /**
+     * @return The first build of the statistics of every build, or zero if
+     * there are none.
+     */
+    public int getAllBuildsSince() {
+        StatisticsStore.Entry entry = getAllBuildsEntry();
+        return entry != null ? entry.firstBuild : 0;
+    }
+
+    /**
+     * @return Whether the page shows the graph rendered on the server
+     * instead of drawing it in the browser.
+     */
+    public boolean isServerRendered() {
+        return serverRendered;
+    }
+
+    /**
+     * Adds no more numeric points than the graph is pixels wide, keeping the
+     * extremes of the values and of the band's edges. Values that are not
+     * numbers would only be gaps narrower than a pixel, so they are left out.
+     * @param width The width of the graph, in pixels.
+     */
+    private static void addDownsampled(hudson.util.DataSetBuilder<String, GraphLabel> data,
+            java.util.List<HistoryPoint> points, boolean banded, int width) {
+        // The points are newest first.
+        HistoryPoint[] numeric = new HistoryPoint[points.size()];
+        double[] values = new double[points.size()];
+        // The edges of the band, whose extremes are kept as well.
+        double[] lows = banded ? new double[points.size()] : null;
+        double[] highs = banded ? new double[points.size()] : null;
+        int count = 0;
+        for (int index = points.size() - 1; index >= 0; --index) {
+            HistoryPoint point = points.get(index);
+            if (point.isNumeric()) {
+                numeric[count] = point;
+                values[count] = point.getNumber();
+                if (banded) {
+                    Samples samples = point.getSamples();
+                    lows[count] = samples != null ? samples.getP5() : values[count];
+                    highs[count] = samples != null ? samples.getP95() : values[count];
+                }
+                ++count;
+            }
+        }
+        double[][] series = banded
+                ? new double[][] {java.util.Arrays.copyOf(values, count),
+                        java.util.Arrays.copyOf(lows, count), java.util.Arrays.copyOf(highs, count)}
+                : new double[][] {java.util.Arrays.copyOf(values, count)};
+        for (int index : Downsampler.minMax(series, width)) {
+            add(data, numeric[index], banded);
+        }
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * A measurement of one build in a {@link History}. It holds only what the
+ * history shows, so that a history does not keep the builds' test results
+ * in memory while it renders.
+ * @author krwalker
+ */
+public final class HistoryPoint {
+
+    private final int buildNumber;
+    private final String displayName;
+    private final long timestamp;
+    private final String nodeName;
+    private final String value;
+    private final double number;
+    private final String unit;
+    private final Samples samples;
+    private final String path;
+
+    HistoryPoint(Measurement measurement) {
+        hudson.model.AbstractBuild<?, ?> build = measurement.getBuild();
+        this.buildNumber = build.getNumber();
+        this.displayName = build.getDisplayName();
+        this.timestamp = build.getTimeInMillis();
+        this.nodeName = build.getBuiltOnStr();
+        this.value = measurement.getValue();
+        this.number = measurement.getNumber();
+        this.unit = measurement.getUnit();
+        this.samples = measurement.getSamples();
+        // Points may be collected off a request thread, where the root URL
+        // is not known unless configured.
+        this.path = measurement.getTestObjectUrl();
+    }
+
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    /**
+     * @return The display name of the build.
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @return When the build started, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The name of the node the build ran on.
+     */
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    /**
+     * @return The value as printed, with its unit.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return The value as a number in the base unit of its unit, or NaN if
+     * it is not a finite number.
+     */
+    public double getNumber() {
+        return number;
+    }
+
+    public boolean isNumeric() {
+        return !Double.isNaN(number);
+    }
+
+    /**
+     * @return The unit of {@link #getNumber}, or null if there is none.
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return The summary of the values, or null if the measurement was
+     * printed once.
+     */
+    public Samples getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return The absolute URL of the test object in the build.
+     */
+    public String getUrl() {
+        return hudson.model.Hudson.getInstance().getRootUrl() + path;
+    }
+
+    /**
+     * @return The URL of the test object in the build, relative to the root
+     * URL.
+     */
+    String getPath() {
+        return path;
+    }
+}
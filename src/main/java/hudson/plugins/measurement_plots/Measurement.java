@@ -25,18 +25,173 @@
 package hudson.plugins.measurement_plots;
 
 /**
- * A measurement. Measurements have names and values.
+ * A measurement. Measurements have names and values, and may have a
+ * {@link Unit}. The value is kept as printed for display, and parsed once
+ * into a number, in the base unit of its dimension, for graphs, statistics
+ * and quality gates.
  * @author krwalker
  */
 public class Measurement {
 
     transient private TestAction testAction;
+    // Set instead of the testAction for measurements read from the SeriesIndex.
+    transient private hudson.model.AbstractBuild<?, ?> build;
+    transient private String testObjectPath;
     private String name;
+    // The value as printed, without its unit.
     private String value;
+    // The unit as printed, or null if there is none.
+    private String unit;
+    // The value as a number in the unit's base unit, or NaN if it is not a
+    // finite number.
+    transient private double number;
+    // The summary of the values, if the measurement was printed more than once.
+    private Samples samples;
+    // Folds repeated values while the output is parsed, until summarized.
+    transient private Samples.Folder folder;
 
+    /**
+     * @param value The value as printed, which may end with a unit.
+     */
     Measurement(String name, String value) {
+        this(name, value, null, null);
+    }
+
+    /**
+     * @param unit The unit printed apart from the value, or null if the
+     * value may end with one.
+     */
+    Measurement(String name, String value, String unit) {
+        this(name, value, apart(unit), null);
+    }
+
+    /**
+     * @return A unit printed apart from its value, as it is shown after the
+     * value.
+     */
+    private static String apart(String unit) {
+        return unit != null ? ' ' + unit.trim() : null;
+    }
+
+    Measurement(String name, String value, String unit, Samples samples) {
         this.name = name;
         this.value = value;
+        this.unit = unit;
+        this.samples = samples;
+        resolve();
+    }
+
+    /**
+     * @param number The value as a number in the unit's base unit, if it is
+     * already known.
+     */
+    Measurement(String name, String value, String unit, double number, Samples samples) {
+        this.name = name;
+        this.value = value;
+        this.unit = unit;
+        this.number = number;
+        this.samples = samples;
+    }
+
+    // Measurements read from XML files skip the constructors.
+    private Object readResolve() {
+        unit = apart(unit);
+        resolve();
+        return this;
+    }
+
+    /**
+     * Splits a known unit off the end of the value, and sets the number.
+     */
+    private void resolve() {
+        if (unit != null && unit.trim().length() == 0) {
+            // An empty unit element is no unit.
+            unit = null;
+        }
+        int split = unit == null && value != null ? Unit.suffixStart(value) : -1;
+        if (split > 0) {
+            double prefix = parse(value.substring(0, split));
+            if (!Double.isNaN(prefix)) {
+                unit = value.substring(split);
+                value = value.substring(0, split);
+                number = Unit.toBase(prefix, unit);
+                return;
+            }
+        }
+        number = Unit.toBase(parse(value), unit);
+    }
+
+    /**
+     * A measurement of a build that was read without loading the build's
+     * test result, so it belongs to no TestAction.
+     * @param measurement The name and value, as read from the SeriesIndex.
+     * @param testObjectPath The test object URL relative to the build URL.
+     */
+    Measurement(Measurement measurement, hudson.model.AbstractBuild<?, ?> build, String testObjectPath) {
+        this(measurement.getName(), measurement.getBareValue(), measurement.getPrintedUnit(),
+                measurement.getNumber(), measurement.getSamples());
+        this.build = build;
+        this.testObjectPath = testObjectPath;
+    }
+
+    /**
+     * @return A measurement with the same name and value that does not
+     * belong to any TestAction yet.
+     */
+    Measurement copy() {
+        return new Measurement(name, getBareValue(), getPrintedUnit(), getNumber(), getSamples());
+    }
+
+    /**
+     * Adds another value printed for the measurement. Numeric values are
+     * folded into the measurement's {@link Samples}, and the measurement's
+     * value becomes their median. Other values, and values whose units do
+     * not convert to the same base unit, are ignored, as the first value
+     * printed is kept.
+     */
+    void fold(Measurement other) {
+        if (!other.isNumeric() || !Unit.isComparable(unit, other.unit)) {
+            return;
+        }
+        if (folder == null) {
+            if (Double.isNaN(number) || samples != null) {
+                // Only values parsed together are folded.
+                return;
+            }
+            folder = new Samples.Folder();
+            folder.add(number);
+        }
+        folder.add(other.getNumber());
+    }
+
+    /**
+     * @return The value as a number, or NaN if it is not a finite number.
+     */
+    static double parse(String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            double parsed = Double.parseDouble(value);
+            return Double.isInfinite(parsed) ? Double.NaN : parsed;
+        } catch (NumberFormatException exception) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Sets the value and samples from the values folded, once the output
+     * is parsed. The measurement does not change after that, so it may be
+     * shared.
+     */
+    void summarize() {
+        if (folder != null) {
+            samples = folder.summarize();
+            number = samples.getMedian();
+            // Shown in the unit the first value was printed in.
+            value = Samples.format(Unit.fromBase(number, unit));
+            folder = null;
+        }
     }
 
     /**
@@ -46,10 +201,57 @@ public class Measurement {
         return name;
     }
 
+    /**
+     * @return The value as printed, with its unit.
+     */
     public String getValue() {
+        return unit == null ? value : value + unit;
+    }
+
+    /**
+     * @return The value as printed, without its unit.
+     */
+    String getBareValue() {
         return value;
     }
 
+    /**
+     * @return The unit as printed, or null if there is none.
+     */
+    String getPrintedUnit() {
+        return unit;
+    }
+
+    /**
+     * @return The unit of {@link #getNumber}, or null if there is none.
+     */
+    public String getUnit() {
+        return Unit.baseOf(getPrintedUnit());
+    }
+
+    /**
+     * @return The value as a number in the base unit of its unit, or NaN if
+     * it is not a finite number.
+     */
+    public double getNumber() {
+        return number;
+    }
+
+    /**
+     * @return Whether the value is a finite number.
+     */
+    public boolean isNumeric() {
+        return !Double.isNaN(getNumber());
+    }
+
+    /**
+     * @return The summary of the values, or null if the measurement was
+     * printed once.
+     */
+    public Samples getSamples() {
+        return samples;
+    }
+
     /**
      * Gets a URL-safe component name.
      */
@@ -86,9 +288,36 @@ public class Measurement {
     }
 
     public hudson.model.AbstractBuild<?, ?> getBuild() {
+        if (testAction == null) {
+            return build;
+        }
         return getTestAction().getBuild();
     }
 
+    /**
+     * Returns the full URL to the TestObject.
+     */
+    public StringBuffer getAbsoluteTestObjectUrl() {
+        if (testAction == null) {
+            StringBuffer buffer = new StringBuffer();
+            buffer.append(hudson.model.Hudson.getInstance().getRootUrl());
+            buffer.append(getTestObjectUrl());
+            return buffer;
+        }
+        return getTestAction().getAbsoluteTestObjectUrl();
+    }
+
+    /**
+     * Returns the URL to the TestObject relative to the root URL, which
+     * does not need a request to work out.
+     */
+    String getTestObjectUrl() {
+        if (testAction == null) {
+            return getBuild().getUrl() + testObjectPath;
+        }
+        return getBuild().getUrl() + getTestAction().getTestObjectPath();
+    }
+
     public hudson.tasks.test.TestObject getTestObject() {
         return getTestAction().getTestObject();
     }
@@ -108,27 +337,9 @@ public class Measurement {
      * exists in the build.
      */
     Measurement getMeasurementInBuild(hudson.model.AbstractBuild<?, ?> build) {
-        hudson.tasks.test.TestObject otherTestObject = getTestObject().getResultInBuild(build);
-        if (otherTestObject != null) {
-            hudson.tasks.test.AbstractTestResultAction otherAbstractTestResultAction =
-                    otherTestObject.getTestResultAction();
-            if (otherAbstractTestResultAction != null) {
-                hudson.tasks.junit.TestResultAction otherJunitTestResultAction =
-                        (hudson.tasks.junit.TestResultAction)otherAbstractTestResultAction;
-                if (otherJunitTestResultAction != null ) {
-                    for (hudson.tasks.junit.TestAction otherJunitTestAction :
-                            otherJunitTestResultAction.getActions(otherTestObject)) {
-                        TestAction measurementAction = (TestAction)otherJunitTestAction;
-                        if (measurementAction != null) {
-                            Measurement otherMeasurement =
-                                    measurementAction.getMeasurement(getName());
-                            if (otherMeasurement != null) {
-                                return otherMeasurement;
-                            }
-                        }
-                    }
-                }
-            }
+        TestAction otherTestAction = getTestAction().getTestActionInBuild(build);
+        if (otherTestAction != null) {
+            return otherTestAction.getMeasurement(getName());
         }
         return null;
     }
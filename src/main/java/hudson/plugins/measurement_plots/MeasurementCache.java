@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.measurement_plots;
+
+/**
+ * A plugin-wide cache of loaded {@link BuildMeasurements}, keyed by build.
+ *
+ * Entries are held strongly, least recently used first out, until their
+ * estimated size exceeds the configured budget. Evicted entries are still
+ * softly reachable, so they can be picked up again until the garbage
+ * collector actually needs the memory.
+ * @author krwalker
+ */
+public class MeasurementCache {
+
+    /** The budget used when none is configured. */
+    static final int DEFAULT_MEGABYTES = 64;
+
+    private static final MeasurementCache INSTANCE = new MeasurementCache();
+
+    private static class Entry {
+        final BuildMeasurements buildMeasurements;
+        final long size;
+
+        Entry(BuildMeasurements buildMeasurements, long size) {
+            this.buildMeasurements = buildMeasurements;
+            this.size = size;
+        }
+    }
+
+    /** A soft reference that remembers its key, so it can be cleaned up. */
+    private static class SoftEntry extends java.lang.ref.SoftReference<BuildMeasurements> {
+        final String key;
+
+        SoftEntry(String key, BuildMeasurements buildMeasurements,
+                java.lang.ref.ReferenceQueue<BuildMeasurements> queue) {
+            super(buildMeasurements, queue);
+            this.key = key;
+        }
+    }
+
+    // Iterates from least to most recently used.
+    private final java.util.LinkedHashMap<String, Entry> entries =
+            new java.util.LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final java.util.Map<String, SoftEntry> evicted = new java.util.HashMap<String, SoftEntry>();
+    private final java.lang.ref.ReferenceQueue<BuildMeasurements> queue =
+            new java.lang.ref.ReferenceQueue<BuildMeasurements>();
+    private long size = 0;
+
+    private long hitCount = 0;
+    private long softHitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    static MeasurementCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return The cache key of a build.
+     */
+    static String keyOf(hudson.model.AbstractBuild<?, ?> build) {
+        return build.getRootDir().getPath();
+    }
+
+    /**
+     * @return The cached measurements or null if they need to be loaded.
+     */
+    synchronized BuildMeasurements get(String key) {
+        BuildMeasurements buildMeasurements = lookup(key);
+        if (buildMeasurements == null) {
+            ++missCount;
+        }
+        return buildMeasurements;
+    }
+
+    /**
+     * Like {@link #get} but does not count a miss, for callers that can
+     * do without the whole build's measurements.
+     */
+    synchronized BuildMeasurements getIfPresent(String key) {
+        return lookup(key);
+    }
+
+    private BuildMeasurements lookup(String key) {
+        expungeCollected();
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            ++hitCount;
+            return entry.buildMeasurements;
+        }
+        SoftEntry softEntry = evicted.get(key);
+        if (softEntry != null) {
+            BuildMeasurements buildMeasurements = softEntry.get();
+            if (buildMeasurements != null) {
+                ++softHitCount;
+                put(key, buildMeasurements);
+                return buildMeasurements;
+            }
+        }
+        return null;
+    }
+
+    synchronized void put(String key, BuildMeasurements buildMeasurements) {
+        expungeCollected();
+        evicted.remove(key);
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous.size;
+        }
+        Entry entry = new Entry(buildMeasurements, estimateSize(buildMeasurements));
+        entries.put(key, entry);
+        size += entry.size;
+        evict(getBudget());
+    }
+
+    synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+        evicted.remove(key);
+    }
+
+    /**
+     * Evicts least recently used entries until the cache fits the budget,
+     * always keeping the most recently used one.
+     */
+    private void evict(long budget) {
+        java.util.Iterator<java.util.Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > budget && entries.size() > 1 && iterator.hasNext()) {
+            java.util.Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue().size;
+            evicted.put(eldest.getKey(),
+                    new SoftEntry(eldest.getKey(), eldest.getValue().buildMeasurements, queue));
+            ++evictionCount;
+        }
+    }
+
+    private void expungeCollected() {
+        java.lang.ref.Reference<? extends BuildMeasurements> reference;
+        while ((reference = queue.poll()) != null) {
+            SoftEntry softEntry = (SoftEntry)reference;
+            if (evicted.get(softEntry.key) == softEntry) {
+                evicted.remove(softEntry.key);
+            }
+        }
+    }
+
+    /**
+     * @return The budget in bytes.
+     */
+    private static long getBudget() {
+        TestDataPublisher.DescriptorImpl descriptor = TestDataPublisher.DescriptorImpl.get();
+        int megabytes = descriptor != null ? descriptor.getCacheMegabytes() : DEFAULT_MEGABYTES;
+        return megabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Roughly estimates the heap used by measurements: object headers,
+     * hash table entries and two bytes per character.
+     */
+    static long estimateSize(BuildMeasurements buildMeasurements) {
+        long estimate = 64;
+        for (java.util.Map.Entry<TestObjectId, TestObjectMeasurements> test : buildMeasurements.entrySet()) {
+            estimate += 160 + 2L * test.getKey().toString().length();
+            for (Measurement measurement : test.getValue()) {
+                estimate += 120 + 2L * measurement.getName().length();
+                if (measurement.getValue() != null) {
+                    estimate += 2L * measurement.getValue().length();
+                }
+                if (measurement.getSamples() != null) {
+                    estimate += 72;
+                }
+            }
+        }
+        return estimate;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getSoftHitCount() {
+        return softHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
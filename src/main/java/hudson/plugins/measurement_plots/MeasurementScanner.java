@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.measurement_plots;
+
+/**
+ * A hand-written, single-pass scanner for the body of a measurement element.
+ * The scanner only understands the canonical form
+ * <tt>&lt;name&gt;...&lt;/name&gt;&lt;value&gt;...&lt;/value&gt;</tt>,
+ * optionally followed by <tt>&lt;unit&gt;...&lt;/unit&gt;</tt>
+ * (in any order, optionally separated by whitespace) with plain text
+ * content and the predefined or numeric character references. Anything else
+ * is rejected so that the caller can fall back to a full XML parse.
+ * @author krwalker
+ */
+class MeasurementScanner {
+
+    private static final String NAME_OPEN = "<name>";
+    private static final String NAME_CLOSE = "</name>";
+    private static final String VALUE_OPEN = "<value>";
+    private static final String VALUE_CLOSE = "</value>";
+    private static final String UNIT_OPEN = "<unit>";
+    private static final String UNIT_CLOSE = "</unit>";
+
+    private MeasurementScanner() {
+    }
+
+    /**
+     * Scans the body of a measurement element.
+     * @param text The text containing the element.
+     * @param from The index just past <tt>&lt;measurement&gt;</tt>.
+     * @param to The index of <tt>&lt;/measurement&gt;</tt>.
+     * @return The measurement or null if the body is not in the canonical form.
+     */
+    static Measurement scan(String text, int from, int to) {
+        String name = null;
+        String value = null;
+        String unit = null;
+        int position = skipWhitespace(text, from, to);
+        while (position < to) {
+            if (name == null && text.startsWith(NAME_OPEN, position)) {
+                int start = position + NAME_OPEN.length();
+                int end = text.indexOf('<', start);
+                if (end < 0 || end >= to || !text.startsWith(NAME_CLOSE, end)) {
+                    return null;
+                }
+                name = decode(text, start, end);
+                if (name == null) {
+                    return null;
+                }
+                position = end + NAME_CLOSE.length();
+            } else if (value == null && text.startsWith(VALUE_OPEN, position)) {
+                int start = position + VALUE_OPEN.length();
+                int end = text.indexOf('<', start);
+                if (end < 0 || end >= to || !text.startsWith(VALUE_CLOSE, end)) {
+                    return null;
+                }
+                value = decode(text, start, end);
+                if (value == null) {
+                    return null;
+                }
+                position = end + VALUE_CLOSE.length();
+            } else if (unit == null && text.startsWith(UNIT_OPEN, position)) {
+                int start = position + UNIT_OPEN.length();
+                int end = text.indexOf('<', start);
+                if (end < 0 || end >= to || !text.startsWith(UNIT_CLOSE, end)) {
+                    return null;
+                }
+                unit = decode(text, start, end);
+                if (unit == null) {
+                    return null;
+                }
+                position = end + UNIT_CLOSE.length();
+            } else {
+                return null;
+            }
+            position = skipWhitespace(text, position, to);
+        }
+        if (position != to || name == null || value == null) {
+            return null;
+        }
+        return new Measurement(name, value, unit);
+    }
+
+    private static int skipWhitespace(String text, int from, int to) {
+        while (from < to) {
+            char c = text.charAt(from);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            ++from;
+        }
+        return from;
+    }
+
+    /**
+     * Decodes character data, replacing references inline. Returns null if
+     * the text contains markup or an unknown entity (which also makes the
+     * enclosing element fail the canonical form check).
+     */
+    private static String decode(String text, int from, int to) {
+        int ampersand = text.indexOf('&', from);
+        if (ampersand < 0 || ampersand >= to) {
+            return text.substring(from, to);
+        }
+        StringBuilder builder = new StringBuilder(to - from);
+        builder.append(text, from, ampersand);
+        int position = ampersand;
+        while (position < to) {
+            char c = text.charAt(position);
+            if (c != '&') {
+                builder.append(c);
+                ++position;
+                continue;
+            }
+            int semicolon = text.indexOf(';', position);
+            if (semicolon < 0 || semicolon >= to) {
+                return null;
+            }
+            if (!appendReference(builder, text, position + 1, semicolon)) {
+                return null;
+            }
+            position = semicolon + 1;
+        }
+        return builder.toString();
+    }
+
+    private static boolean appendReference(StringBuilder builder, String text, int from, int to) {
+        int length = to - from;
+        if (length <= 0) {
+            return false;
+        }
+        if (text.charAt(from) == '#') {
+            int radix = 10;
+            int start = from + 1;
+            if (start < to && (text.charAt(start) == 'x' || text.charAt(start) == 'X')) {
+                radix = 16;
+                ++start;
+            }
+            if (start >= to) {
+                return false;
+            }
+            int codePoint = 0;
+            for (int i = start; i < to; ++i) {
+                int digit = Character.digit(text.charAt(i), radix);
+                if (digit < 0) {
+                    return false;
+                }
+                codePoint = codePoint * radix + digit;
+                if (codePoint > Character.MAX_CODE_POINT) {
+                    return false;
+                }
+            }
+            // Leave characters XML does not allow to the full parser.
+            if (codePoint == 0 || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+                return false;
+            }
+            builder.appendCodePoint(codePoint);
+            return true;
+        }
+        if (text.startsWith("lt", from) && length == 2) {
+            builder.append('<');
+        } else if (text.startsWith("gt", from) && length == 2) {
+            builder.append('>');
+        } else if (text.startsWith("amp", from) && length == 3) {
+            builder.append('&');
+        } else if (text.startsWith("quot", from) && length == 4) {
+            builder.append('"');
+        } else if (text.startsWith("apos", from) && length == 4) {
+            builder.append('\'');
+        } else {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * Summary statistics of the numeric values of a measurement, kept in one
+ * pass: the count, extremes, mean and standard deviation exactly with
+ * {@link RunningStats}, and percentiles approximately with a
+ * {@link QuantileSketch}. Statistics of two sets of values merge into
+ * those of both.
+ * @author krwalker
+ */
+@org.kohsuke.stapler.export.ExportedBean(defaultVisibility = 2)
+public class MeasurementStatistics {
+
+    private RunningStats stats = new RunningStats();
+    private QuantileSketch sketch = new QuantileSketch();
+
+    MeasurementStatistics() {
+    }
+
+    void add(double value) {
+        stats.add(value);
+        sketch.add(value);
+    }
+
+    void merge(MeasurementStatistics other) {
+        stats.merge(other.stats);
+        sketch.merge(other.sketch);
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public long getCount() {
+        return stats.getCount();
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public Double getMin() {
+        return finite(stats.getMin());
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public Double getMax() {
+        return finite(stats.getMax());
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public Double getMean() {
+        return finite(stats.getMean());
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public Double getStandardDeviation() {
+        return finite(stats.getStandardDeviation());
+    }
+
+    /**
+     * @return The approximate median.
+     */
+    @org.kohsuke.stapler.export.Exported
+    public Double getP50() {
+        return finite(sketch.getQuantile(0.50));
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public Double getP95() {
+        return finite(sketch.getQuantile(0.95));
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public Double getP99() {
+        return finite(sketch.getQuantile(0.99));
+    }
+
+    /**
+     * @return The value, or null if it is not finite, as JSON has no
+     * infinities or NaN.
+     */
+    private static Double finite(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? null : Double.valueOf(value);
+    }
+
+    void write(java.io.DataOutputStream out) throws java.io.IOException {
+        stats.write(out);
+        sketch.write(out);
+    }
+
+    static MeasurementStatistics read(java.io.DataInputStream in) throws java.io.IOException {
+        MeasurementStatistics statistics = new MeasurementStatistics();
+        statistics.stats = RunningStats.read(in);
+        statistics.sketch = QuantileSketch.read(in);
+        return statistics;
+    }
+}
@@ -0,0 +1,894 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.measurement_plots;
+
+/**
+ * Stores the {@link BuildMeasurements} of a build in its own file in the
+ * build directory.
+ *
+ * Measurements are written in a compact binary format
+ * (measurement-plots.bin). Builds recorded before the format existed have an
+ * XStream file (measurement-plots.xml) instead; it is still read, and a
+ * binary copy is written the first time it is read.
+ *
+ * The binary format (version 4) is laid out so that the measurements of a
+ * single test object can be read without reading the rest of the file:
+ * <pre>
+ * int     MAGIC
+ * byte    version
+ * byte    flags                 (FLAG_COMPRESSED)
+ * int     test object count
+ * long    offset of the name dictionary
+ * long    offset of the index
+ * blocks, one per test object, sorted by id:
+ *   varint  stored length, then that many bytes, deflated if FLAG_COMPRESSED:
+ *     string  id
+ *     varint  measurement count, then for each, sorted by name:
+ *       varint  name index
+ *       byte    value type      (VALUE_LONG, VALUE_DOUBLE, VALUE_STRING or VALUE_NULL)
+ *       zigzag varint, double, string or nothing
+ *       preceded, for a measurement printed several times, by:
+ *       byte    VALUE_SAMPLES
+ *       varint  count, then doubles min, p5, median, p95, max and mean
+ *       and then, for a measurement with a unit, by:
+ *       byte    VALUE_UNIT
+ *       string  the unit as printed
+ * name dictionary:
+ *   varint  name count, then each name as a string
+ * index, one entry per test object, sorted by id hash:
+ *   int     String.hashCode() of the id
+ *   long    offset of the block's bytes
+ *   int     stored length of the block
+ * </pre>
+ * Strings are a varint length followed by UTF-8 bytes. Values are stored as
+ * numbers only if the number prints back as the exact original text, so
+ * values read back are always the strings that were written. Units are
+ * stored apart from their values, so that values with units are stored as
+ * numbers too.
+ *
+ * Version 3 files have the same layout without units, and version 2 files
+ * without samples either. Version 1 files, which held a single string
+ * dictionary followed by all test objects in one optionally deflated
+ * stream, can still be read too.
+ * @author krwalker
+ */
+class MeasurementStore {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(MeasurementStore.class.getName());
+
+    static final String BINARY_FILE_NAME = "measurement-plots.bin";
+    static final String XML_FILE_NAME = "measurement-plots.xml";
+
+    static final int MAGIC = 0x4d504c54; // "MPLT"
+    static final int VERSION_1 = 1;
+    static final int VERSION_2 = 2;
+    static final int VERSION_3 = 3;
+    static final int VERSION = 4;
+    static final int FLAG_COMPRESSED = 0x01;
+
+    private static final int HEADER_LENGTH = 4 + 1 + 1 + 4 + 8 + 8;
+    private static final int INDEX_ENTRY_LENGTH = 4 + 8 + 4;
+
+    static final int VALUE_LONG = 0;
+    static final int VALUE_DOUBLE = 1;
+    static final int VALUE_STRING = 2;
+    static final int VALUE_NULL = 3;
+    static final int VALUE_SAMPLES = 4;
+    static final int VALUE_UNIT = 5;
+
+    private static final com.thoughtworks.xstream.XStream XSTREAM = new hudson.util.XStream2();
+
+    // Convert BuildMeasurements to XML in a more friendly way.
+    private static class BuildMeasurementsConverter extends
+            com.thoughtworks.xstream.converters.collections.MapConverter {
+        BuildMeasurementsConverter(com.thoughtworks.xstream.mapper.Mapper mapper) {
+            super(mapper);
+        }
+
+        @Override
+        public boolean canConvert(Class type) {
+            return type.equals(BuildMeasurements.class);
+        }
+    }
+    // Convert TestObjectMeasurements to XML in a more friendly way.
+    private static class TestObjectMeasurementsConverter extends
+            com.thoughtworks.xstream.converters.collections.CollectionConverter {
+        TestObjectMeasurementsConverter(com.thoughtworks.xstream.mapper.Mapper mapper) {
+            super(mapper);
+        }
+
+        @Override
+        public boolean canConvert(Class type) {
+            return type.equals(TestObjectMeasurements.class);
+        }
+    }
+
+    // Convert TestObjectIds to XML in a more friendly way.
+    private static class TestObjectIdConverter extends
+            com.thoughtworks.xstream.converters.basic.AbstractSingleValueConverter {
+
+        @Override
+        public boolean canConvert(Class type) {
+            return type.equals(TestObjectId.class);
+        }
+
+        @Override
+        public Object fromString(String string) {
+            return TestObjectId.fromString(string);
+        }
+
+    }
+    static {
+        XSTREAM.registerConverter(new BuildMeasurementsConverter(XSTREAM.getMapper()));
+        XSTREAM.alias("build-measurements", BuildMeasurements.class);
+        XSTREAM.alias("test-object", java.util.Map.Entry.class);
+        XSTREAM.registerConverter(new TestObjectIdConverter());
+        XSTREAM.alias("id", TestObjectId.class);
+        XSTREAM.registerConverter(new TestObjectMeasurementsConverter(XSTREAM.getMapper()));
+        XSTREAM.alias("measurements", TestObjectMeasurements.class);
+        XSTREAM.alias("measurement", Measurement.class);
+        XSTREAM.alias("samples", Samples.class);
+        // Is this needed?
+        XSTREAM.registerConverter(new hudson.util.HeapSpaceStringConverter(),100);
+    }
+
+    private final java.io.File directory;
+
+    /**
+     * @param directory The build directory.
+     */
+    MeasurementStore(java.io.File directory) {
+        this.directory = directory;
+    }
+
+    java.io.File getBinaryFile() {
+        return new java.io.File(directory, BINARY_FILE_NAME);
+    }
+
+    private hudson.XmlFile getXmlFile() {
+        return new hudson.XmlFile(XSTREAM, new java.io.File(directory, XML_FILE_NAME));
+    }
+
+    /** The fixed-size start of a file. */
+    private static class Header {
+        int version;
+        int flags;
+        int testCount;
+        long dictionaryOffset;
+        long indexOffset;
+
+        boolean isCompressed() {
+            return (flags & FLAG_COMPRESSED) != 0;
+        }
+    }
+
+    /**
+     * The name dictionary of the binary file, kept while the file is
+     * unchanged so reading single test objects does not reread it.
+     */
+    private String[] names;
+    private long namesLastModified;
+    private long namesLength;
+
+    /**
+     * @return Whether any measurements were stored for the build. This only
+     * reads the header of the binary file.
+     */
+    boolean hasMeasurements() {
+        java.io.File binaryFile = getBinaryFile();
+        if (!binaryFile.exists()) {
+            return getXmlFile().exists();
+        }
+        try {
+            java.io.RandomAccessFile file = new java.io.RandomAccessFile(binaryFile, "r");
+            try {
+                Header header = readHeader(file);
+                return header.version == VERSION_1 || header.testCount > 0;
+            } finally {
+                file.close();
+            }
+        } catch (java.io.IOException exception) {
+            LOGGER.log(java.util.logging.Level.WARNING, "Failed to read " + binaryFile, exception);
+            return false;
+        }
+    }
+
+    /**
+     * Loads the measurements, converting an old XML file to the binary format.
+     * @return The measurements, which are empty if none were stored.
+     */
+    BuildMeasurements read() throws java.io.IOException {
+        java.io.File binaryFile = getBinaryFile();
+        if (binaryFile.exists()) {
+            return readBinary(binaryFile);
+        }
+        hudson.XmlFile xmlFile = getXmlFile();
+        if (!xmlFile.exists()) {
+            return new BuildMeasurements();
+        }
+        BuildMeasurements buildMeasurements = (BuildMeasurements)xmlFile.read();
+        try {
+            write(buildMeasurements);
+        } catch (java.io.IOException exception) {
+            // The XML file is still there, so try again next time.
+            LOGGER.log(java.util.logging.Level.WARNING, "Failed to convert " + xmlFile, exception);
+        }
+        return buildMeasurements;
+    }
+
+    /**
+     * Loads the measurements of a single test object. For binary files this
+     * looks the id up in the index and reads only the matching block.
+     * @return The measurements or null if there are none for the test object.
+     */
+    synchronized TestObjectMeasurements read(TestObjectId id) throws java.io.IOException {
+        java.io.File binaryFile = getBinaryFile();
+        if (!binaryFile.exists()) {
+            return read().get(id);
+        }
+        java.io.RandomAccessFile file = new java.io.RandomAccessFile(binaryFile, "r");
+        try {
+            Header header = readHeader(file);
+            if (header.version == VERSION_1) {
+                return readBinary(binaryFile).get(id);
+            }
+            String idString = id.toString();
+            int hash = idString.hashCode();
+            // Find the first entry with the hash.
+            int low = 0;
+            int high = header.testCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                file.seek(header.indexOffset + (long)middle * INDEX_ENTRY_LENGTH);
+                if (file.readInt() < hash) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            // Check every block with the hash.
+            for (int entry = low; entry < header.testCount; ++entry) {
+                file.seek(header.indexOffset + (long)entry * INDEX_ENTRY_LENGTH);
+                if (file.readInt() != hash) {
+                    break;
+                }
+                long offset = file.readLong();
+                int length = file.readInt();
+                byte[] block = new byte[length];
+                file.seek(offset);
+                file.readFully(block);
+                java.io.DataInputStream in = openBlock(block, header.isCompressed());
+                if (readString(in).equals(idString)) {
+                    return readMeasurements(in, getNames(file, binaryFile, header));
+                }
+            }
+            return null;
+        } finally {
+            file.close();
+        }
+    }
+
+    private String[] getNames(java.io.RandomAccessFile file, java.io.File binaryFile, Header header)
+            throws java.io.IOException {
+        long lastModified = binaryFile.lastModified();
+        long length = file.length();
+        if (names == null || namesLastModified != lastModified || namesLength != length) {
+            byte[] dictionary = new byte[(int)(header.indexOffset - header.dictionaryOffset)];
+            file.seek(header.dictionaryOffset);
+            file.readFully(dictionary);
+            names = readNames(new java.io.DataInputStream(new java.io.ByteArrayInputStream(dictionary)));
+            namesLastModified = lastModified;
+            namesLength = length;
+        }
+        return names;
+    }
+
+    /**
+     * Opens the measurements for reading one test object at a time, in id
+     * order. Binary files are streamed a block at a time; files in older
+     * formats are read whole and sorted.
+     */
+    synchronized Cursor open() throws java.io.IOException {
+        java.io.File binaryFile = getBinaryFile();
+        if (binaryFile.exists()) {
+            Header header;
+            String[] fileNames = null;
+            java.io.RandomAccessFile file = new java.io.RandomAccessFile(binaryFile, "r");
+            try {
+                header = readHeader(file);
+                if (header.version != VERSION_1) {
+                    fileNames = getNames(file, binaryFile, header);
+                }
+            } finally {
+                file.close();
+            }
+            if (fileNames != null) {
+                java.io.DataInputStream in = new java.io.DataInputStream(new java.io.BufferedInputStream(
+                        new java.io.FileInputStream(binaryFile), 64 * 1024));
+                try {
+                    readHeader(in);
+                } catch (java.io.IOException exception) {
+                    in.close();
+                    throw exception;
+                }
+                return new Cursor(binaryFile, in, fileNames, header);
+            }
+        }
+        return new Cursor(sort(read()));
+    }
+
+    /**
+     * The test objects of a build, read one at a time in id order, so that
+     * a whole build's measurements are never in memory together.
+     */
+    static final class Cursor implements java.io.Closeable {
+
+        // Either the blocks of a binary file are streamed...
+        private final java.io.File file;
+        private final java.io.DataInputStream in;
+        private final String[] names;
+        private final java.util.zip.Inflater inflater;
+        private int remaining;
+        // ...or a file in an older format was read whole.
+        private final java.util.Iterator<java.util.Map.Entry<String, java.util.SortedMap<String, Measurement>>> sorted;
+
+        private String id;
+        private Measurement[] measurements;
+
+        private Cursor(java.io.File file, java.io.DataInputStream in, String[] names, Header header) {
+            this.file = file;
+            this.in = in;
+            this.names = names;
+            this.inflater = header.isCompressed() ? new java.util.zip.Inflater() : null;
+            this.remaining = header.testCount;
+            this.sorted = null;
+        }
+
+        private Cursor(java.util.SortedMap<String, java.util.SortedMap<String, Measurement>> sorted) {
+            this.file = null;
+            this.in = null;
+            this.names = null;
+            this.inflater = null;
+            this.remaining = 0;
+            this.sorted = sorted.entrySet().iterator();
+        }
+
+        /**
+         * Moves to the next test object.
+         * @return Whether there was one.
+         */
+        boolean next() throws java.io.IOException {
+            if (sorted != null) {
+                if (!sorted.hasNext()) {
+                    return false;
+                }
+                java.util.Map.Entry<String, java.util.SortedMap<String, Measurement>> test = sorted.next();
+                id = test.getKey();
+                measurements = test.getValue().values().toArray(new Measurement[test.getValue().size()]);
+                return true;
+            }
+            if (remaining == 0) {
+                return false;
+            }
+            --remaining;
+            try {
+                byte[] block = new byte[readVarInt(in)];
+                in.readFully(block);
+                java.io.InputStream blockStream = new java.io.ByteArrayInputStream(block);
+                if (inflater != null) {
+                    // One inflater serves every block.
+                    inflater.reset();
+                    blockStream = new java.util.zip.InflaterInputStream(blockStream, inflater);
+                }
+                java.io.DataInputStream blockIn = new java.io.DataInputStream(blockStream);
+                id = readString(blockIn);
+                measurements = new Measurement[readVarInt(blockIn)];
+                for (int index = 0; index < measurements.length; ++index) {
+                    measurements[index] = readMeasurement(blockIn, names[readVarInt(blockIn)]);
+                }
+            } catch (java.io.EOFException exception) {
+                throw new java.io.IOException(file + " is truncated");
+            }
+            return true;
+        }
+
+        /**
+         * @return The id of the current test object.
+         */
+        String getId() {
+            return id;
+        }
+
+        /**
+         * @return The measurements of the current test object, sorted by
+         * name.
+         */
+        Measurement[] getMeasurements() {
+            return measurements;
+        }
+
+        public void close() throws java.io.IOException {
+            if (inflater != null) {
+                inflater.end();
+            }
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Replaces the stored measurements.
+     */
+    synchronized void write(BuildMeasurements buildMeasurements) throws java.io.IOException {
+        java.io.File binaryFile = getBinaryFile();
+        java.io.File temporaryFile = new java.io.File(directory, BINARY_FILE_NAME + ".tmp");
+        writeBinary(buildMeasurements, temporaryFile, isCompressing());
+        // Windows will not rename over an existing file.
+        if (!temporaryFile.renameTo(binaryFile)) {
+            binaryFile.delete();
+            if (!temporaryFile.renameTo(binaryFile)) {
+                temporaryFile.delete();
+                throw new java.io.IOException("Failed to rename " + temporaryFile + " to " + binaryFile);
+            }
+        }
+        names = null;
+    }
+
+    /**
+     * @return Whether newly written files should be compressed.
+     */
+    static boolean isCompressing() {
+        TestDataPublisher.DescriptorImpl descriptor = TestDataPublisher.DescriptorImpl.get();
+        return descriptor != null && descriptor.isCompressStore();
+    }
+
+    static void writeBinary(BuildMeasurements buildMeasurements, java.io.File file, boolean compress)
+            throws java.io.IOException {
+        java.util.SortedMap<String, java.util.SortedMap<String, Measurement>> sorted = sort(buildMeasurements);
+
+        java.util.Map<String, Integer> names = new java.util.LinkedHashMap<String, Integer>();
+        for (java.util.SortedMap<String, Measurement> measurements : sorted.values()) {
+            for (String name : measurements.keySet()) {
+                intern(names, name);
+            }
+        }
+
+        // Sort the index by hash, keeping the block order for equal hashes.
+        long[] index = new long[sorted.size()];
+        long[] offsets = new long[sorted.size()];
+        int[] lengths = new int[sorted.size()];
+        long position = HEADER_LENGTH;
+
+        java.util.zip.Deflater deflater = compress ? new java.util.zip.Deflater(java.util.zip.Deflater.BEST_SPEED) : null;
+        java.io.DataOutputStream out = new java.io.DataOutputStream(
+                new java.io.BufferedOutputStream(new java.io.FileOutputStream(file), 64 * 1024));
+        try {
+            out.write(new byte[HEADER_LENGTH]);
+            java.io.ByteArrayOutputStream blockBytes = new java.io.ByteArrayOutputStream();
+            int entry = 0;
+            for (java.util.Map.Entry<String, java.util.SortedMap<String, Measurement>> test : sorted.entrySet()) {
+                blockBytes.reset();
+                java.io.DataOutputStream block = new java.io.DataOutputStream(blockBytes);
+                writeString(block, test.getKey());
+                writeVarInt(block, test.getValue().size());
+                for (Measurement measurement : test.getValue().values()) {
+                    writeVarInt(block, names.get(measurement.getName()));
+                    writeMeasurement(block, measurement);
+                }
+                block.flush();
+                byte[] stored = deflater != null ? deflate(deflater, blockBytes.toByteArray()) : blockBytes.toByteArray();
+
+                java.io.ByteArrayOutputStream lengthBytes = new java.io.ByteArrayOutputStream(5);
+                writeVarInt(new java.io.DataOutputStream(lengthBytes), stored.length);
+                out.write(lengthBytes.toByteArray());
+                position += lengthBytes.size();
+
+                index[entry] = ((long)test.getKey().hashCode() << 32) | entry;
+                offsets[entry] = position;
+                lengths[entry] = stored.length;
+                out.write(stored);
+                position += stored.length;
+                ++entry;
+            }
+
+            long dictionaryOffset = position;
+            java.io.ByteArrayOutputStream dictionaryBytes = new java.io.ByteArrayOutputStream();
+            java.io.DataOutputStream dictionary = new java.io.DataOutputStream(dictionaryBytes);
+            writeVarInt(dictionary, names.size());
+            for (String name : names.keySet()) {
+                writeString(dictionary, name);
+            }
+            dictionary.flush();
+            out.write(dictionaryBytes.toByteArray());
+            position += dictionaryBytes.size();
+
+            long indexOffset = position;
+            java.util.Arrays.sort(index);
+            for (long key : index) {
+                int block = (int)key;
+                out.writeInt((int)(key >> 32));
+                out.writeLong(offsets[block]);
+                out.writeInt(lengths[block]);
+            }
+            out.close();
+            out = null;
+
+            java.io.RandomAccessFile headerFile = new java.io.RandomAccessFile(file, "rw");
+            try {
+                headerFile.writeInt(MAGIC);
+                headerFile.writeByte(VERSION);
+                headerFile.writeByte(compress ? FLAG_COMPRESSED : 0);
+                headerFile.writeInt(sorted.size());
+                headerFile.writeLong(dictionaryOffset);
+                headerFile.writeLong(indexOffset);
+            } finally {
+                headerFile.close();
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private static byte[] deflate(java.util.zip.Deflater deflater, byte[] bytes) {
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        java.io.ByteArrayOutputStream deflated = new java.io.ByteArrayOutputStream(bytes.length / 2 + 16);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            deflated.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return deflated.toByteArray();
+    }
+
+    private static java.io.DataInputStream openBlock(byte[] block, boolean compressed) {
+        java.io.InputStream in = new java.io.ByteArrayInputStream(block);
+        if (compressed) {
+            in = new java.util.zip.InflaterInputStream(in);
+        }
+        return new java.io.DataInputStream(in);
+    }
+
+    private static Header readHeader(java.io.DataInput in) throws java.io.IOException {
+        Header header = new Header();
+        if (in.readInt() != MAGIC) {
+            throw new java.io.IOException("Not a measurement file");
+        }
+        header.version = in.readUnsignedByte();
+        header.flags = in.readUnsignedByte();
+        if (header.version == VERSION || header.version == VERSION_3 || header.version == VERSION_2) {
+            header.testCount = in.readInt();
+            header.dictionaryOffset = in.readLong();
+            header.indexOffset = in.readLong();
+        } else if (header.version != VERSION_1) {
+            throw new java.io.IOException("Unsupported measurement file version " + header.version);
+        }
+        return header;
+    }
+
+    static BuildMeasurements readBinary(java.io.File file) throws java.io.IOException {
+        java.io.InputStream stream = new java.io.BufferedInputStream(new java.io.FileInputStream(file), 64 * 1024);
+        try {
+            java.io.DataInputStream in = new java.io.DataInputStream(stream);
+            Header header = readHeader(in);
+            if (header.version == VERSION_1) {
+                return readVersion1(stream, header);
+            }
+            // The dictionary comes after the blocks, so get it first.
+            String[] names;
+            java.io.RandomAccessFile randomAccessFile = new java.io.RandomAccessFile(file, "r");
+            try {
+                randomAccessFile.seek(header.dictionaryOffset);
+                byte[] dictionary = new byte[(int)(header.indexOffset - header.dictionaryOffset)];
+                randomAccessFile.readFully(dictionary);
+                names = readNames(new java.io.DataInputStream(new java.io.ByteArrayInputStream(dictionary)));
+            } finally {
+                randomAccessFile.close();
+            }
+            BuildMeasurements buildMeasurements = new BuildMeasurements();
+            for (int i = 0; i < header.testCount; ++i) {
+                byte[] block = new byte[readVarInt(in)];
+                in.readFully(block);
+                java.io.DataInputStream blockIn = openBlock(block, header.isCompressed());
+                TestObjectId id = TestObjectId.fromString(readString(blockIn));
+                buildMeasurements.put(id, readMeasurements(blockIn, names));
+            }
+            return buildMeasurements;
+        } catch (java.io.EOFException exception) {
+            throw new java.io.IOException(file + " is truncated");
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static String[] readNames(java.io.DataInputStream in) throws java.io.IOException {
+        String[] names = new String[readVarInt(in)];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = readString(in);
+        }
+        return names;
+    }
+
+    private static TestObjectMeasurements readMeasurements(java.io.DataInputStream in, String[] names)
+            throws java.io.IOException {
+        int measurementCount = readVarInt(in);
+        TestObjectMeasurements measurements = new TestObjectMeasurements();
+        for (int j = 0; j < measurementCount; ++j) {
+            measurements.add(readMeasurement(in, names[readVarInt(in)]));
+        }
+        return measurements;
+    }
+
+    /**
+     * Reads the body of a version 1 file.
+     */
+    private static BuildMeasurements readVersion1(java.io.InputStream stream, Header header)
+            throws java.io.IOException {
+        java.util.zip.Inflater inflater = null;
+        java.io.InputStream bodyStream = stream;
+        if (header.isCompressed()) {
+            inflater = new java.util.zip.Inflater();
+            bodyStream = new java.util.zip.InflaterInputStream(stream, inflater, 64 * 1024);
+        }
+        try {
+            java.io.DataInputStream body = new java.io.DataInputStream(bodyStream);
+            String[] strings = readNames(body);
+            int testCount = readVarInt(body);
+            BuildMeasurements buildMeasurements = new BuildMeasurements();
+            for (int i = 0; i < testCount; ++i) {
+                TestObjectId id = TestObjectId.fromString(strings[readVarInt(body)]);
+                int measurementCount = readVarInt(body);
+                TestObjectMeasurements measurements = new TestObjectMeasurements();
+                for (int j = 0; j < measurementCount; ++j) {
+                    String name = strings[readVarInt(body)];
+                    measurements.add(new Measurement(name, readValue(body, strings)));
+                }
+                buildMeasurements.put(id, measurements);
+            }
+            return buildMeasurements;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static java.util.SortedMap<String, java.util.SortedMap<String, Measurement>> sort(
+            BuildMeasurements buildMeasurements) {
+        java.util.SortedMap<String, java.util.SortedMap<String, Measurement>> sorted =
+                new java.util.TreeMap<String, java.util.SortedMap<String, Measurement>>();
+        for (java.util.Map.Entry<TestObjectId, TestObjectMeasurements> test : buildMeasurements.entrySet()) {
+            java.util.SortedMap<String, Measurement> measurements = new java.util.TreeMap<String, Measurement>();
+            for (Measurement measurement : test.getValue()) {
+                measurements.put(measurement.getName(), measurement);
+            }
+            sorted.put(test.getKey().toString(), measurements);
+        }
+        return sorted;
+    }
+
+    private static void intern(java.util.Map<String, Integer> strings, String string) {
+        if (!strings.containsKey(string)) {
+            strings.put(string, strings.size());
+        }
+    }
+
+    /**
+     * @return How a value can be stored without changing its text.
+     */
+    static int valueType(String value) {
+        if (value == null) {
+            return VALUE_NULL;
+        }
+        if (value.length() == 0 || value.length() > 24) {
+            return VALUE_STRING;
+        }
+        char first = value.charAt(0);
+        if (first != '-' && (first < '0' || first > '9')) {
+            return VALUE_STRING;
+        }
+        try {
+            if (Long.toString(Long.parseLong(value)).equals(value)) {
+                return VALUE_LONG;
+            }
+        } catch (NumberFormatException exception) {
+            // Not a long.
+        }
+        try {
+            if (Double.toString(Double.parseDouble(value)).equals(value)) {
+                return VALUE_DOUBLE;
+            }
+        } catch (NumberFormatException exception) {
+            // Not a double.
+        }
+        return VALUE_STRING;
+    }
+
+    static void writeValue(java.io.DataOutputStream out, String value) throws java.io.IOException {
+        int type = valueType(value);
+        out.writeByte(type);
+        switch (type) {
+            case VALUE_LONG:
+                writeVarLong(out, zigzag(Long.parseLong(value)));
+                break;
+            case VALUE_DOUBLE:
+                out.writeDouble(Double.parseDouble(value));
+                break;
+            case VALUE_NULL:
+                break;
+            default:
+                writeString(out, value);
+                break;
+        }
+    }
+
+    /**
+     * Writes the value of a measurement, preceded by its samples and unit
+     * if it has them.
+     */
+    static void writeMeasurement(java.io.DataOutputStream out, Measurement measurement)
+            throws java.io.IOException {
+        Samples samples = measurement.getSamples();
+        if (samples != null) {
+            out.writeByte(VALUE_SAMPLES);
+            samples.write(out);
+        }
+        String unit = measurement.getPrintedUnit();
+        if (unit != null) {
+            out.writeByte(VALUE_UNIT);
+            writeString(out, unit);
+        }
+        writeValue(out, measurement.getBareValue());
+    }
+
+    /**
+     * Reads a value written by {@link #writeMeasurement}.
+     */
+    static Measurement readMeasurement(java.io.DataInputStream in, String name) throws java.io.IOException {
+        int type = in.readUnsignedByte();
+        Samples samples = null;
+        if (type == VALUE_SAMPLES) {
+            samples = Samples.read(in);
+            type = in.readUnsignedByte();
+        }
+        String unit = null;
+        if (type == VALUE_UNIT) {
+            unit = readString(in);
+            type = in.readUnsignedByte();
+        }
+        // Numbers are stored as numbers, so they need no parsing.
+        switch (type) {
+            case VALUE_LONG:
+                long longValue = unzigzag(readVarLong(in));
+                return new Measurement(name, Long.toString(longValue), unit,
+                        Unit.toBase(longValue, unit), samples);
+            case VALUE_DOUBLE:
+                double doubleValue = in.readDouble();
+                return new Measurement(name, Double.toString(doubleValue), unit,
+                        Double.isInfinite(doubleValue) ? Double.NaN : Unit.toBase(doubleValue, unit), samples);
+            default:
+                return new Measurement(name, readValue(in, type, null), unit, samples);
+        }
+    }
+
+    /**
+     * Reads a value, skipping its samples and unit.
+     */
+    static String readValue(java.io.DataInputStream in) throws java.io.IOException {
+        return readValue(in, null);
+    }
+
+    /**
+     * @param strings The string dictionary of a version 1 file, or null if
+     * strings are stored inline.
+     */
+    private static String readValue(java.io.DataInputStream in, String[] strings) throws java.io.IOException {
+        int type = in.readUnsignedByte();
+        if (type == VALUE_SAMPLES) {
+            Samples.read(in);
+            type = in.readUnsignedByte();
+        }
+        if (type == VALUE_UNIT) {
+            readString(in);
+            type = in.readUnsignedByte();
+        }
+        return readValue(in, type, strings);
+    }
+
+    private static String readValue(java.io.DataInputStream in, int type, String[] strings)
+            throws java.io.IOException {
+        switch (type) {
+            case VALUE_LONG:
+                return Long.toString(unzigzag(readVarLong(in)));
+            case VALUE_DOUBLE:
+                return Double.toString(in.readDouble());
+            case VALUE_STRING:
+                return strings != null ? strings[readVarInt(in)] : readString(in);
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new java.io.IOException("Unknown value type " + type);
+        }
+    }
+
+    static void writeString(java.io.DataOutputStream out, String string) throws java.io.IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(java.io.DataInputStream in) throws java.io.IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static void writeVarInt(java.io.DataOutput out, int value) throws java.io.IOException {
+        writeVarLong(out, value & 0xffffffffL);
+    }
+
+    static int readVarInt(java.io.DataInput in) throws java.io.IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new java.io.IOException("Corrupt measurement file");
+        }
+        return (int)value;
+    }
+
+    static void writeVarLong(java.io.DataOutput out, long value) throws java.io.IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    static long readVarLong(java.io.DataInput in) throws java.io.IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new java.io.IOException("Corrupt measurement file");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
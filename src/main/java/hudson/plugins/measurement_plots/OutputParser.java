@@ -26,39 +26,121 @@ package hudson.plugins.measurement_plots;
 
 /**
  * Parses text-based output for measurements.
+ *
+ * Measurements are located and decoded in a single forward pass by
+ * {@link MeasurementScanner}. Elements the scanner does not understand
+ * (CDATA sections, comments, unknown entities, ...) are handed to XStream,
+ * which was the only parser before and still defines the accepted format.
  * @author krwalker
  */
 class OutputParser {
-    private static final String REGEX =
-            "(<measurement>.+?</measurement>)";
+    static final String MEASUREMENT_OPEN = "<measurement>";
+    static final String MEASUREMENT_CLOSE = "</measurement>";
     private static final java.util.logging.Logger LOGGER =
             java.util.logging.Logger.getLogger(OutputParser.class.getName());
-    private static final java.util.regex.Pattern PATTERN = 
-            java.util.regex.Pattern.compile(REGEX);
-    private static final com.thoughtworks.xstream.XStream XSTREAM = new hudson.util.XStream2();
-    static {
-        XSTREAM.alias("measurement", Measurement.class);
+
+    // Only set up XStream when something needs the fallback. The parser
+    // also runs on build agents, where most outputs never need it.
+    private static class Fallback {
+        static final com.thoughtworks.xstream.XStream XSTREAM = new hudson.util.XStream2();
+        static {
+            XSTREAM.alias("measurement", Measurement.class);
+        }
     }
 
     OutputParser() {
     }
 
     TestObjectMeasurements parse(String text) {
+        TestObjectMeasurements measurements = new TestObjectMeasurements();
+        parse(text, measurements);
+        measurements.finishParsing();
+        return measurements;
+    }
+
+    /**
+     * Adds the measurements found in the text to a set. Repeated numeric
+     * measurements of a name are folded into the first one's
+     * {@link Samples}; otherwise the first measurement with a name is kept.
+     * The samples are summarized by {@link TestObjectMeasurements#finishParsing}
+     * once the whole output is parsed.
+     * @return The index just past the last measurement found, or 0 if there
+     * was none.
+     */
+    int parse(String text, TestObjectMeasurements measurements) {
         // Search for measurements.
         // <measurement><name>name with spaces</name><value>some value</value></measurement>
+        // <measurement><name>time</name><value>12</value><unit>ms</unit></measurement>
         // Add each name/value to the map
-        TestObjectMeasurements measurements = new TestObjectMeasurements();
-        java.util.regex.Matcher matcher = PATTERN.matcher(text);
-        while (matcher.find()) {
-            try {
-                Measurement measurement = (Measurement)XSTREAM.fromXML(matcher.group(1));
-                if (measurement != null) {
-                    measurements.add(measurement);
+        //
+        // This matches what the regular expression (<measurement>.+?</measurement>)
+        // used to find: the shortest non-empty body that does not cross a
+        // line terminator. Both the next close tag and the next line
+        // terminator are remembered so the text is only scanned once.
+        int end = 0;
+        int nextClose = -1;
+        int nextLineEnd = -1;
+        int from = 0;
+        int start;
+        while ((start = text.indexOf(MEASUREMENT_OPEN, from)) >= 0) {
+            int bodyStart = start + MEASUREMENT_OPEN.length();
+            if (nextClose < bodyStart + 1) {
+                nextClose = text.indexOf(MEASUREMENT_CLOSE, bodyStart + 1);
+                if (nextClose < 0) {
+                    // No more close tags, so no more measurements.
+                    break;
                 }
-            } catch (com.thoughtworks.xstream.XStreamException exception) {
-                // Do nothing. The parse failed.
             }
+            if (nextLineEnd != -2 && nextLineEnd < bodyStart) {
+                nextLineEnd = indexOfLineTerminator(text, bodyStart);
+            }
+            if (nextLineEnd >= 0 && nextLineEnd < nextClose) {
+                // The body would cross a line, try the next open tag.
+                from = start + 1;
+                continue;
+            }
+            Measurement measurement = MeasurementScanner.scan(text, bodyStart, nextClose);
+            if (measurement == null) {
+                measurement = parseXml(text.substring(start, nextClose + MEASUREMENT_CLOSE.length()));
+            }
+            if (measurement != null && measurement.getName() != null) {
+                measurements.addSample(measurement);
+            }
+            from = nextClose + MEASUREMENT_CLOSE.length();
+            end = from;
         }
-        return measurements;
+        return end;
+    }
+
+    /**
+     * Parses a single measurement element with XStream.
+     * @return The measurement or null if the parse failed.
+     */
+    private static Measurement parseXml(String element) {
+        try {
+            return (Measurement)Fallback.XSTREAM.fromXML(element);
+        } catch (com.thoughtworks.xstream.XStreamException exception) {
+            // Do nothing. The parse failed.
+            LOGGER.log(java.util.logging.Level.FINE, "Ignoring malformed measurement " + element, exception);
+            return null;
+        }
+    }
+
+    /**
+     * @return The index of the next character that '.' does not match in a
+     * regular expression, or -2 if there is none.
+     */
+    private static int indexOfLineTerminator(String text, int from) {
+        for (int i = from, length = text.length(); i < length; ++i) {
+            switch (text.charAt(i)) {
+                case '\n':
+                case '\r':
+                case '\u0085':
+                case '\u2028':
+                case '\u2029':
+                    return i;
+            }
+        }
+        return -2;
     }
 }
@@ -0,0 +1,320 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * Several measurements of a job, possibly of different test objects, drawn
+ * as lines in one graph. Every series is collected in the same pass over
+ * the builds.
+ *
+ * Each series is named by a "series" query parameter of the form
+ * <code>test object id|measurement name</code>.
+ * @author krwalker
+ */
+public class Overlay {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(Overlay.class.getName());
+
+    /** A measurement of a test object. */
+    public static class Series {
+        private final String testObjectId;
+        private final String name;
+
+        Series(String testObjectId, String name) {
+            this.testObjectId = testObjectId;
+            this.name = name;
+        }
+
+        /**
+         * @return The series named by a query parameter, or null if it is
+         * not of the form <code>id|name</code>.
+         */
+        static Series parse(String parameter) {
+            int separator = parameter.indexOf('|');
+            if (separator <= 0 || separator == parameter.length() - 1) {
+                return null;
+            }
+            return new Series(parameter.substring(0, separator), parameter.substring(separator + 1));
+        }
+
+        public String getTestObjectId() {
+            return testObjectId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The name shown in the legend.
+         */
+        public String getLabel() {
+            // Ids start with the name of the test result action.
+            int slash = testObjectId.indexOf('/');
+            return testObjectId.substring(slash + 1) + " : " + name;
+        }
+
+        @Override
+        public String toString() {
+            return testObjectId + '|' + name;
+        }
+    }
+
+    transient private final hudson.model.AbstractProject<?, ?> project;
+    transient private final java.util.List<Series> series;
+    transient private final int last;
+    // The values of each series by build, and the builds that have any.
+    transient private java.util.Map<Series, java.util.SortedMap<Integer, Double>> values;
+    transient private java.util.SortedMap<Integer, hudson.model.AbstractBuild<?, ?>> builds;
+    transient private java.util.Set<String> units;
+
+    /**
+     * @param last How many builds with any of the measurements to collect,
+     * newest first, or zero for all.
+     */
+    Overlay(hudson.model.AbstractProject<?, ?> project, java.util.List<Series> series, int last) {
+        this.project = project;
+        this.series = series;
+        this.last = last;
+    }
+
+    /**
+     * @return The overlay named by the current request's "series" and
+     * "last" parameters.
+     */
+    static Overlay fromRequest(hudson.model.AbstractProject<?, ?> project,
+            org.kohsuke.stapler.StaplerRequest request) {
+        java.util.List<Series> series = new java.util.ArrayList<Series>();
+        String[] parameters = request.getParameterValues("series");
+        if (parameters != null) {
+            for (String parameter : parameters) {
+                Series one = Series.parse(parameter);
+                if (one != null) {
+                    series.add(one);
+                }
+            }
+        }
+        int last = History.DEFAULT_LAST;
+        String lastParameter = hudson.Util.fixEmptyAndTrim(request.getParameter("last"));
+        if (lastParameter != null) {
+            try {
+                last = Math.max(0, Integer.parseInt(lastParameter));
+            } catch (NumberFormatException exception) {
+                // Keep the default.
+            }
+        }
+        return new Overlay(project, series, last);
+    }
+
+    public hudson.model.AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    public java.util.List<Series> getSeries() {
+        return series;
+    }
+
+    public int getLast() {
+        return last;
+    }
+
+    /**
+     * @return The query string naming this overlay, for the graph URLs.
+     */
+    public String getQuery() {
+        StringBuilder query = new StringBuilder();
+        for (Series one : series) {
+            query.append(query.length() == 0 ? '?' : '&').append("series=");
+            try {
+                query.append(java.net.URLEncoder.encode(one.toString(), "UTF-8"));
+            } catch (java.io.UnsupportedEncodingException exception) {
+                // UTF-8 is always supported.
+                throw new AssertionError(exception);
+            }
+        }
+        if (last != History.DEFAULT_LAST) {
+            query.append(query.length() == 0 ? '?' : '&').append("last=").append(last);
+        }
+        return query.toString();
+    }
+
+    /**
+     * Reads the builds the job's SeriesIndex covers from the index, a test
+     * object at a time, and loads each older build's test result once for
+     * all series.
+     */
+    private void collect() {
+        values = new java.util.HashMap<Series, java.util.SortedMap<Integer, Double>>();
+        builds = new java.util.TreeMap<Integer, hudson.model.AbstractBuild<?, ?>>();
+        units = new java.util.HashSet<String>();
+        java.util.Map<String, java.util.List<Series>> byTestObject =
+                new java.util.LinkedHashMap<String, java.util.List<Series>>();
+        for (Series one : series) {
+            values.put(one, new java.util.TreeMap<Integer, Double>());
+            java.util.List<Series> ofTestObject = byTestObject.get(one.getTestObjectId());
+            if (ofTestObject == null) {
+                ofTestObject = new java.util.ArrayList<Series>();
+                byTestObject.put(one.getTestObjectId(), ofTestObject);
+            }
+            ofTestObject.add(one);
+        }
+
+        SeriesIndex index = SeriesIndex.of(project);
+        int indexedSince = index.getIndexedSince();
+        java.util.Map<Series, java.util.SortedMap<Integer, Measurement>> indexed =
+                new java.util.HashMap<Series, java.util.SortedMap<Integer, Measurement>>();
+        if (indexedSince != Integer.MAX_VALUE) {
+            try {
+                for (java.util.Map.Entry<String, java.util.List<Series>> entry : byTestObject.entrySet()) {
+                    java.util.Set<String> names = new java.util.HashSet<String>();
+                    for (Series one : entry.getValue()) {
+                        names.add(one.getName());
+                    }
+                    java.util.Map<String, java.util.SortedMap<Integer, Measurement>> read =
+                            index.read(entry.getKey(), names);
+                    for (Series one : entry.getValue()) {
+                        indexed.put(one, read.get(one.getName()));
+                    }
+                }
+            } catch (java.io.IOException exception) {
+                LOGGER.log(java.util.logging.Level.WARNING, "Failed to read the measurement index of "
+                        + project.getFullName(), exception);
+                indexedSince = Integer.MAX_VALUE;
+            }
+        }
+
+        int found = 0;
+        for (hudson.model.AbstractBuild<?, ?> build : project.getBuilds()) {
+            if (build.isBuilding()) continue;
+            boolean measured = false;
+            if (build.getNumber() >= indexedSince) {
+                for (Series one : series) {
+                    Measurement read = indexed.get(one).get(build.getNumber());
+                    if (read != null) {
+                        measured |= add(one, build, read);
+                    }
+                }
+            } else {
+                hudson.tasks.test.AbstractTestResultAction action = build.getTestResultAction();
+                if (action instanceof hudson.tasks.junit.TestResultAction) {
+                    for (java.util.Map.Entry<String, java.util.List<Series>> entry : byTestObject.entrySet()) {
+                        TestAction testAction = findTestAction(
+                                (hudson.tasks.junit.TestResultAction)action, entry.getKey());
+                        if (testAction == null) {
+                            continue;
+                        }
+                        for (Series one : entry.getValue()) {
+                            Measurement measurement = testAction.getMeasurement(one.getName());
+                            if (measurement != null) {
+                                measured |= add(one, build, measurement);
+                            }
+                        }
+                    }
+                }
+            }
+            if (measured && ++found == last) break;
+        }
+    }
+
+    private static TestAction findTestAction(hudson.tasks.junit.TestResultAction action, String testObjectId) {
+        hudson.tasks.test.TestResult testObject = action.findCorrespondingResult(testObjectId);
+        if (testObject == null) {
+            return null;
+        }
+        for (hudson.tasks.junit.TestAction testAction : action.getActions(testObject)) {
+            if (testAction instanceof TestAction) {
+                return (TestAction)testAction;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a numeric value; others cannot be drawn.
+     * @return Whether the value was added.
+     */
+    private boolean add(Series one, hudson.model.AbstractBuild<?, ?> build, Measurement measurement) {
+        if (!measurement.isNumeric()) {
+            return false;
+        }
+        values.get(one).put(build.getNumber(), measurement.getNumber());
+        builds.put(build.getNumber(), build);
+        units.add(measurement.getUnit());
+        return true;
+    }
+
+    public Graph getGraph() {
+        java.util.Calendar timestamp = java.util.Calendar.getInstance();
+        hudson.model.AbstractBuild<?, ?> newest = project.getLastCompletedBuild();
+        if (newest != null) {
+            timestamp = newest.getTimestamp();
+        }
+        return new Graph(null, timestamp) {
+            @Override
+            protected hudson.model.Job<?, ?> getJob() {
+                return project;
+            }
+
+            @Override
+            protected String getCacheKey() {
+                return "overlay" + getQuery();
+            }
+
+            @Override
+            protected String getRangeAxisLabel() {
+                if (values == null) {
+                    collect();
+                }
+                return commonUnit(units);
+            }
+
+            @Override
+            protected hudson.util.DataSetBuilder<String, GraphLabel> getDataSetBuilder() {
+                if (values == null) {
+                    collect();
+                }
+                hudson.util.DataSetBuilder<String, GraphLabel> data =
+                        new hudson.util.DataSetBuilder<String, GraphLabel>();
+                java.util.Map<Integer, GraphLabel> labels = new java.util.HashMap<Integer, GraphLabel>();
+                for (java.util.Map.Entry<Integer, hudson.model.AbstractBuild<?, ?>> build : builds.entrySet()) {
+                    labels.put(build.getKey(), new GraphLabel(build.getValue()));
+                }
+                for (Series one : series) {
+                    // Every series gets every build, so that they share the columns.
+                    java.util.SortedMap<Integer, Double> seriesValues = values.get(one);
+                    for (java.util.Map.Entry<Integer, GraphLabel> label : labels.entrySet()) {
+                        data.add(seriesValues.get(label.getKey()), one.getLabel(), label.getValue());
+                    }
+                }
+                return data;
+            }
+
+            @Override
+            protected org.jfree.chart.JFreeChart createGraph() {
+                return createLineGraph(null, getRangeAxisLabel(), getDataSetBuilder().build(), true);
+            }
+        };
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.measurement_plots;
+
+/**
+ * Parses the outputs handed to it on a bounded pool of threads and merges
+ * the results into a single {@link BuildMeasurements}.
+ *
+ * Outputs are numbered in the order they are offered. When two outputs
+ * belong to the same test object, the one offered last wins, exactly as it
+ * does when the outputs are parsed one after another on a single thread.
+ * An output shared by several test objects is parsed once and each test
+ * object gets its own copy of the measurements.
+ * @author krwalker
+ */
+class ParallelOutputCollector implements TestResultOutputOperation {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(ParallelOutputCollector.class.getName());
+
+    /** Parsed measurements tagged with the order their output was offered in. */
+    private static class Sequenced {
+        final long sequence;
+        final TestObjectMeasurements measurements;
+
+        Sequenced(long sequence, TestObjectMeasurements measurements) {
+            this.sequence = sequence;
+            this.measurements = measurements;
+        }
+    }
+
+    private final OutputParser parser = new OutputParser();
+    private final java.util.concurrent.ThreadPoolExecutor executor;
+    private final java.util.concurrent.ConcurrentMap<TestObjectId, Sequenced> collected =
+            new java.util.concurrent.ConcurrentHashMap<TestObjectId, Sequenced>();
+    private long sequence = 0;
+    private volatile RuntimeException failure = null;
+
+    /**
+     * @param parallelism The number of outputs to parse at the same time.
+     */
+    ParallelOutputCollector(int parallelism) {
+        // The queue is bounded so that walking a huge test result does not
+        // queue up every output at once; when it is full the walking thread
+        // parses the output itself.
+        this.executor = new java.util.concurrent.ThreadPoolExecutor(
+                parallelism, parallelism,
+                0L, java.util.concurrent.TimeUnit.MILLISECONDS,
+                new java.util.concurrent.ArrayBlockingQueue<Runnable>(parallelism * 4),
+                new hudson.util.DaemonThreadFactory(),
+                new java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public void apply(java.util.List<hudson.tasks.test.TestResult> results, final String text) {
+        // Resolve the ids on the walking thread; test results are not
+        // guaranteed to be safe to use from several threads.
+        final java.util.List<TestObjectId> ids = BuildMeasurements.idsOf(results);
+        final long order = sequence++;
+        executor.execute(new Runnable() {
+            public void run() {
+                if (failure != null) {
+                    return;
+                }
+                try {
+                    TestObjectMeasurements testObjectMeasurements = parser.parse(text);
+                    if (!testObjectMeasurements.isEmpty()) {
+                        for (int i = 0; i < ids.size(); ++i) {
+                            merge(ids.get(i), new Sequenced(order,
+                                    i == 0 ? testObjectMeasurements : testObjectMeasurements.copy()));
+                        }
+                    }
+                } catch (RuntimeException exception) {
+                    failure = exception;
+                }
+            }
+        });
+    }
+
+    private void merge(TestObjectId id, Sequenced candidate) {
+        while (true) {
+            Sequenced current = collected.putIfAbsent(id, candidate);
+            if (current == null || current.sequence > candidate.sequence) {
+                return;
+            }
+            if (collected.replace(id, current, candidate)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for all offered outputs to be parsed and stops the pool.
+     * @return The merged measurements.
+     */
+    BuildMeasurements finish() throws InterruptedException {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, java.util.concurrent.TimeUnit.MINUTES)) {
+                LOGGER.fine("Still waiting for measurement parsing to finish");
+            }
+        } catch (InterruptedException exception) {
+            executor.shutdownNow();
+            throw exception;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        BuildMeasurements buildMeasurements = new BuildMeasurements();
+        for (java.util.Map.Entry<TestObjectId, Sequenced> entry : collected.entrySet()) {
+            buildMeasurements.put(entry.getKey(), entry.getValue().measurements);
+        }
+        return buildMeasurements;
+    }
+
+    /**
+     * Stops the pool without waiting for outstanding outputs.
+     */
+    void abort() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * The measurement plots of a job, and the home of its SeriesIndex.
+ * @author krwalker
+ */
+public class ProjectAction implements hudson.model.Action {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(ProjectAction.class.getName());
+
+    private final hudson.model.AbstractProject<?, ?> project;
+
+    ProjectAction(hudson.model.AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public hudson.model.AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    public String getIconFileName() {
+        return "graph.gif";
+    }
+
+    public String getDisplayName() {
+        return "Measurement Plots";
+    }
+
+    public String getUrlName() {
+        return "measurementPlots";
+    }
+
+    /**
+     * @return The overlay of the measurements named by the request.
+     */
+    public Overlay getOverlay() {
+        return Overlay.fromRequest(project, org.kohsuke.stapler.Stapler.getCurrentRequest());
+    }
+
+    /**
+     * @return The differences between the two builds named by the request.
+     */
+    public BuildDiff getDiff() {
+        return BuildDiff.fromRequest(project, org.kohsuke.stapler.Stapler.getCurrentRequest());
+    }
+
+    /**
+     * @return The latest change points found in the job's measurements,
+     * newest first.
+     */
+    public java.util.List<ChangePoint> getRecentChangePoints(int count) {
+        return ChangePointDetector.of(project).getRecentChangePoints(count);
+    }
+
+    private SeriesIndex getIndex() {
+        return SeriesIndex.of(project);
+    }
+
+    /**
+     * @return Whether any builds are read from the index.
+     */
+    public boolean isIndexed() {
+        return getIndex().getIndexedSince() != Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return The first build read from the index.
+     */
+    public int getIndexedSince() {
+        return getIndex().getIndexedSince();
+    }
+
+    public boolean isRebuilding() {
+        return getIndex().isRebuilding();
+    }
+
+    /**
+     * Rebuilds the index from the measurements stored in the builds. The
+     * rebuild continues in the background.
+     */
+    public void doRebuild(org.kohsuke.stapler.StaplerRequest request,
+            org.kohsuke.stapler.StaplerResponse response) throws java.io.IOException {
+        project.checkPermission(hudson.model.Item.CONFIGURE);
+        if (!"POST".equals(request.getMethod())) {
+            response.sendError(javax.servlet.http.HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        if (!isRebuilding()) {
+            new Thread("Measurement Plots index rebuild for " + project.getFullName()) {
+                @Override
+                public void run() {
+                    try {
+                        getIndex().rebuild(project);
+                    } catch (java.io.IOException exception) {
+                        LOGGER.log(java.util.logging.Level.WARNING, "Failed to rebuild the measurement index of "
+                                + project.getFullName(), exception);
+                    }
+                }
+            }.start();
+        }
+        response.sendRedirect2(".");
+    }
+
+    /**
+     * Adds the action to the projects that publish measurements.
+     */
+    @hudson.Extension
+    public static class Factory extends hudson.model.TransientProjectActionFactory {
+
+        @Override
+        public java.util.Collection<? extends hudson.model.Action> createFor(
+                @SuppressWarnings("rawtypes") hudson.model.AbstractProject target) {
+            hudson.tasks.junit.JUnitResultArchiver archiver =
+                    (hudson.tasks.junit.JUnitResultArchiver)target.getPublishersList().get(
+                    hudson.tasks.junit.JUnitResultArchiver.class);
+            if (archiver == null || archiver.getTestDataPublishers().get(TestDataPublisher.class) == null) {
+                return java.util.Collections.emptyList();
+            }
+            return java.util.Collections.singletonList(new ProjectAction(target));
+        }
+    }
+
+    /**
+     * Forgets the per-job state kept for jobs that are deleted or renamed.
+     */
+    @hudson.Extension
+    public static class ItemListenerImpl extends hudson.model.listeners.ItemListener {
+
+        @Override
+        public void onDeleted(hudson.model.Item item) {
+            forget(item.getRootDir());
+        }
+
+        @Override
+        public void onRenamed(hudson.model.Item item, String oldName, String newName) {
+            forget(new java.io.File(item.getRootDir().getParentFile(), oldName));
+        }
+
+        private static void forget(java.io.File rootDir) {
+            SeriesIndex.forget(rootDir);
+            ChangePointDetector.forget(rootDir);
+            StatisticsStore.forget(rootDir);
+        }
+    }
+}
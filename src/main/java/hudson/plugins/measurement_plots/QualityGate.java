@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * Checks a build's measurements against a job's {@link GateRule}s.
+ * <p>
+ * Baselines are taken from the measurements stored with the earlier
+ * builds, so no test results are loaded. Each earlier build is streamed
+ * at most once however many rules use it, keeping only the values of the
+ * measurements the rules compare, and is not put in the MeasurementCache.
+ * @author krwalker
+ */
+final class QualityGate {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(QualityGate.class.getName());
+
+    /** The breaches listed in the build log for each rule. */
+    static final int MAX_REPORTED = 20;
+
+    private final java.util.List<GateRule> rules;
+    private final hudson.model.AbstractBuild<?, ?> build;
+
+    // The measurements of this build that rules compare with earlier builds,
+    // by test object id and name, numbered for the arrays of baselines.
+    private final java.util.Map<String, java.util.Map<String, Integer>> compared =
+            new java.util.HashMap<String, java.util.Map<String, Integer>>();
+    private int comparedCount = 0;
+
+    // The values of the compared measurements in the earlier builds, newest
+    // first, read as far back as a rule has needed.
+    private final java.util.List<double[]> previous = new java.util.ArrayList<double[]>();
+    private hudson.model.AbstractBuild<?, ?> previousBuild;
+    private boolean previousExhausted = false;
+    private double[] lastSuccessful;
+
+    QualityGate(java.util.List<GateRule> rules, hudson.model.AbstractBuild<?, ?> build) {
+        this.rules = rules;
+        this.build = build;
+        this.previousBuild = build.getPreviousBuild();
+    }
+
+    /** A measurement outside a rule's tolerance. */
+    private static final class Breach implements Comparable<Breach> {
+        final TestObjectId id;
+        final Measurement measurement;
+        final double baseline;
+        final double excess;
+
+        Breach(TestObjectId id, Measurement measurement, double baseline, double excess) {
+            this.id = id;
+            this.measurement = measurement;
+            this.baseline = baseline;
+            this.excess = excess;
+        }
+
+        public int compareTo(Breach that) {
+            return Double.compare(that.excess, this.excess);
+        }
+    }
+
+    /**
+     * Checks the measurements, lists the breaches in the build log and
+     * makes the build's result no better than the worst broken rule's.
+     * @return The worst result of a broken rule, or null if none is broken.
+     */
+    hudson.model.Result check(BuildMeasurements buildMeasurements, java.io.PrintStream logger)
+            throws java.io.IOException {
+        findCompared(buildMeasurements);
+        hudson.model.Result worst = null;
+        for (GateRule rule : rules) {
+            java.util.List<Breach> breaches = check(rule, buildMeasurements);
+            if (breaches.isEmpty()) {
+                continue;
+            }
+            java.util.Collections.sort(breaches);
+            logger.println("Measurement Plots: " + breaches.size() + " measurement"
+                    + (breaches.size() == 1 ? " is" : "s are") + " not " + rule);
+            for (Breach breach : breaches.subList(0, Math.min(MAX_REPORTED, breaches.size()))) {
+                logger.println("  " + breach.id + " : " + breach.measurement.getName() + " = "
+                        + breach.measurement.getValue() + " (baseline " + breach.baseline + ")");
+            }
+            if (breaches.size() > MAX_REPORTED) {
+                logger.println("  and " + (breaches.size() - MAX_REPORTED) + " more");
+            }
+            if (worst == null || rule.getResult().isWorseThan(worst)) {
+                worst = rule.getResult();
+            }
+        }
+        if (worst != null) {
+            build.setResult(worst);
+        }
+        return worst;
+    }
+
+    /**
+     * Numbers the measurements that rules compare with earlier builds.
+     */
+    private void findCompared(BuildMeasurements buildMeasurements) {
+        for (GateRule rule : rules) {
+            if (rule.getBaseline() != GateRule.Baseline.LAST_SUCCESSFUL
+                    && rule.getBaseline() != GateRule.Baseline.ROLLING_MEDIAN) {
+                continue;
+            }
+            for (java.util.Map.Entry<TestObjectId, TestObjectMeasurements> entry : buildMeasurements.entrySet()) {
+                java.util.Map<String, Integer> ofTestObject = null;
+                for (Measurement measurement : entry.getValue()) {
+                    if (!rule.matches(measurement.getName()) || Double.isNaN(measurement.getNumber())) {
+                        continue;
+                    }
+                    if (ofTestObject == null) {
+                        String id = entry.getKey().toString();
+                        ofTestObject = compared.get(id);
+                        if (ofTestObject == null) {
+                            ofTestObject = new java.util.HashMap<String, Integer>();
+                            compared.put(id, ofTestObject);
+                        }
+                    }
+                    if (!ofTestObject.containsKey(measurement.getName())) {
+                        ofTestObject.put(measurement.getName(), Integer.valueOf(comparedCount++));
+                    }
+                }
+            }
+        }
+    }
+
+    private java.util.List<Breach> check(GateRule rule, BuildMeasurements buildMeasurements)
+            throws java.io.IOException {
+        java.util.List<Breach> breaches = new java.util.ArrayList<Breach>();
+        double[] last = null;
+        java.util.List<double[]> window = null;
+        if (rule.getBaseline() == GateRule.Baseline.LAST_SUCCESSFUL) {
+            last = getLastSuccessful();
+            if (last == null) {
+                return breaches;
+            }
+        } else if (rule.getBaseline() == GateRule.Baseline.ROLLING_MEDIAN) {
+            window = getPrevious(rule.getBuilds());
+        }
+        double[] values = new double[window != null ? window.size() : 0];
+
+        for (java.util.Map.Entry<TestObjectId, TestObjectMeasurements> entry : buildMeasurements.entrySet()) {
+            java.util.Map<String, Integer> ofTestObject = compared.get(entry.getKey().toString());
+            for (Measurement measurement : entry.getValue()) {
+                if (!rule.matches(measurement.getName())) {
+                    continue;
+                }
+                double actual = measurement.getNumber();
+                if (Double.isNaN(actual)) {
+                    continue;
+                }
+                double baseline;
+                if (last != null) {
+                    baseline = last[ofTestObject.get(measurement.getName()).intValue()];
+                } else if (window != null) {
+                    int index = ofTestObject.get(measurement.getName()).intValue();
+                    int count = 0;
+                    for (double[] earlier : window) {
+                        if (!Double.isNaN(earlier[index])) {
+                            values[count++] = earlier[index];
+                        }
+                    }
+                    baseline = median(values, count);
+                } else {
+                    baseline = rule.getValue();
+                }
+                if (Double.isNaN(baseline)) {
+                    continue;
+                }
+                double excess = rule.getWorsening(baseline, actual) - rule.getAllowance(baseline);
+                if (excess > 0) {
+                    breaches.add(new Breach(entry.getKey(), measurement, baseline, excess));
+                }
+            }
+        }
+        return breaches;
+    }
+
+    /**
+     * @return The values of the compared measurements in the last
+     * successful build, or null if there is none.
+     */
+    private double[] getLastSuccessful() throws java.io.IOException {
+        if (lastSuccessful == null) {
+            hudson.model.AbstractBuild<?, ?> successful = build.getPreviousSuccessfulBuild();
+            if (successful != null) {
+                lastSuccessful = read(new MeasurementStore(successful.getRootDir()), successful);
+            }
+        }
+        return lastSuccessful;
+    }
+
+    /**
+     * @return The values of the compared measurements in up to the given
+     * number of the latest earlier builds that stored any.
+     */
+    private java.util.List<double[]> getPrevious(int count) throws java.io.IOException {
+        while (previous.size() < count && !previousExhausted) {
+            if (previousBuild == null) {
+                previousExhausted = true;
+                break;
+            }
+            if (!previousBuild.isBuilding()) {
+                MeasurementStore store = new MeasurementStore(previousBuild.getRootDir());
+                if (store.hasMeasurements()) {
+                    previous.add(read(store, previousBuild));
+                }
+            }
+            previousBuild = previousBuild.getPreviousBuild();
+        }
+        return previous.subList(0, Math.min(count, previous.size()));
+    }
+
+    /**
+     * Streams an earlier build's measurements, keeping only the values of
+     * the compared ones.
+     * @return The values, NaN where a measurement was not stored.
+     */
+    private double[] read(MeasurementStore store, hudson.model.AbstractBuild<?, ?> earlier)
+            throws java.io.IOException {
+        double[] values = new double[comparedCount];
+        java.util.Arrays.fill(values, Double.NaN);
+        if (comparedCount == 0) {
+            return values;
+        }
+        MeasurementStore.Cursor cursor = store.open();
+        try {
+            while (cursor.next()) {
+                java.util.Map<String, Integer> ofTestObject = compared.get(cursor.getId());
+                if (ofTestObject == null) {
+                    continue;
+                }
+                for (Measurement measurement : cursor.getMeasurements()) {
+                    Integer index = ofTestObject.get(measurement.getName());
+                    if (index != null) {
+                        values[index.intValue()] = measurement.getNumber();
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        LOGGER.fine("Read the measurements of " + earlier + " for a quality gate");
+        return values;
+    }
+
+    /**
+     * @return The median of the first values, which are reordered, or NaN
+     * if there are none.
+     */
+    static double median(double[] values, int count) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        java.util.Arrays.sort(values, 0, count);
+        int middle = count / 2;
+        return count % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * Approximate quantiles of a stream of values in bounded memory, with the
+ * KLL sketch of Karnin, Lang and Liberty.
+ * <p>
+ * Values are kept in levels. A value at level h stands for 2^h values.
+ * When a level is full it is sorted and every other value, starting at the
+ * first or the second, moves up a level. Lower levels hold fewer values
+ * than higher ones, so the sketch keeps about three times {@link #k}
+ * values however long the stream is. Its rank error is about 1.7 / k.
+ * Sketches of the same k merge into the sketch of both streams.
+ * @author krwalker
+ */
+final class QuantileSketch {
+
+    static final int DEFAULT_K = 128;
+
+    // The ratio of the capacities of neighboring levels.
+    private static final double CAPACITY_RATIO = 2.0 / 3.0;
+    private static final int MIN_CAPACITY = 2;
+
+    private final int k;
+    private long count = 0;
+    private double[][] levels = { new double[0] };
+    private int[] sizes = { 0 };
+
+    QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    QuantileSketch(int k) {
+        this.k = Math.max(MIN_CAPACITY, k);
+    }
+
+    int getK() {
+        return k;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    void add(double value) {
+        append(0, value);
+        ++count;
+        compress();
+    }
+
+    /**
+     * Adds the values of another sketch of the same k.
+     */
+    void merge(QuantileSketch other) {
+        if (other.k != k) {
+            throw new IllegalArgumentException("Cannot merge a sketch of k " + other.k + " into one of k " + k);
+        }
+        for (int level = 0; level < other.levels.length; ++level) {
+            for (int index = 0; index < other.sizes[level]; ++index) {
+                append(level, other.levels[level][index]);
+            }
+        }
+        count += other.count;
+        compress();
+    }
+
+    private void append(int level, double value) {
+        while (level >= levels.length) {
+            levels = java.util.Arrays.copyOf(levels, levels.length + 1);
+            levels[levels.length - 1] = new double[0];
+            sizes = java.util.Arrays.copyOf(sizes, sizes.length + 1);
+        }
+        if (sizes[level] == levels[level].length) {
+            levels[level] = java.util.Arrays.copyOf(levels[level], Math.max(8, levels[level].length * 2));
+        }
+        levels[level][sizes[level]++] = value;
+    }
+
+    private int capacity(int level) {
+        int depth = levels.length - 1 - level;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_RATIO, depth)));
+    }
+
+    /**
+     * Compacts the lowest full level until the sketch is within its capacity.
+     */
+    private void compress() {
+        while (true) {
+            int size = 0;
+            int capacity = 0;
+            for (int level = 0; level < levels.length; ++level) {
+                size += sizes[level];
+                capacity += capacity(level);
+            }
+            if (size < capacity) {
+                return;
+            }
+            for (int level = 0; level < levels.length; ++level) {
+                if (sizes[level] >= capacity(level)) {
+                    compact(level);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void compact(int level) {
+        double[] values = levels[level];
+        int size = sizes[level];
+        java.util.Arrays.sort(values, 0, size);
+        // An odd value out stays behind.
+        int kept = size % 2;
+        // A fair coin, which is the same for the same stream.
+        int offset = (int) ((count * 0x9E3779B97F4A7C15L) >>> 63);
+        for (int index = kept + offset; index < size; index += 2) {
+            append(level + 1, values[index]);
+        }
+        // append may have replaced the arrays.
+        levels[level] = values;
+        sizes[level] = kept;
+    }
+
+    /**
+     * @param fraction The rank of the quantile, from 0 to 1.
+     * @return The approximate quantile, or NaN if there are no values.
+     */
+    double getQuantile(double fraction) {
+        int size = 0;
+        for (int level = 0; level < levels.length; ++level) {
+            size += sizes[level];
+        }
+        if (size == 0) {
+            return Double.NaN;
+        }
+        double[] values = new double[size];
+        long[] weights = new long[size];
+        Integer[] order = new Integer[size];
+        int index = 0;
+        long total = 0;
+        for (int level = 0; level < levels.length; ++level) {
+            for (int item = 0; item < sizes[level]; ++item) {
+                values[index] = levels[level][item];
+                weights[index] = 1L << level;
+                order[index] = index;
+                total += weights[index];
+                ++index;
+            }
+        }
+        final double[] sortedValues = values;
+        java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+            public int compare(Integer first, Integer second) {
+                return Double.compare(sortedValues[first], sortedValues[second]);
+            }
+        });
+        double target = Math.max(0, Math.min(1, fraction)) * total;
+        long cumulative = 0;
+        for (Integer item : order) {
+            cumulative += weights[item];
+            if (cumulative >= target) {
+                return values[item];
+            }
+        }
+        return values[order[size - 1]];
+    }
+
+    void write(java.io.DataOutputStream out) throws java.io.IOException {
+        MeasurementStore.writeVarInt(out, k);
+        MeasurementStore.writeVarLong(out, count);
+        MeasurementStore.writeVarInt(out, levels.length);
+        for (int level = 0; level < levels.length; ++level) {
+            MeasurementStore.writeVarInt(out, sizes[level]);
+            for (int index = 0; index < sizes[level]; ++index) {
+                out.writeDouble(levels[level][index]);
+            }
+        }
+    }
+
+    static QuantileSketch read(java.io.DataInputStream in) throws java.io.IOException {
+        QuantileSketch sketch = new QuantileSketch(MeasurementStore.readVarInt(in));
+        sketch.count = MeasurementStore.readVarLong(in);
+        int levelCount = MeasurementStore.readVarInt(in);
+        sketch.levels = new double[Math.max(1, levelCount)][];
+        sketch.sizes = new int[sketch.levels.length];
+        sketch.levels[0] = new double[0];
+        for (int level = 0; level < levelCount; ++level) {
+            int size = MeasurementStore.readVarInt(in);
+            sketch.levels[level] = new double[size];
+            sketch.sizes[level] = size;
+            for (int index = 0; index < size; ++index) {
+                sketch.levels[level][index] = in.readDouble();
+            }
+        }
+        return sketch;
+    }
+}
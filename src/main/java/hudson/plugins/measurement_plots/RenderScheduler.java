@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * Renders graphs on a small pool of threads instead of on every request
+ * thread at once, so that a page full of graphs cannot make the controller
+ * allocate dozens of images at the same time.
+ *
+ * Requests for a graph that is already waiting or being rendered share its
+ * result. A request that waits longer than the timeout gets a placeholder;
+ * the render goes on and its result is cached for the next request. When
+ * too many renders are already waiting, a request gets the placeholder at once.
+ * @author krwalker
+ */
+public class RenderScheduler {
+
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_TIMEOUT_SECONDS = 10;
+    // Renders that may wait for a thread; past this requests get the placeholder.
+    static final int QUEUE_CAPACITY = 64;
+
+    private static final RenderScheduler INSTANCE = new RenderScheduler();
+
+    private final java.util.concurrent.ThreadPoolExecutor executor;
+
+    // The renders waiting or running, by graph key.
+    private final java.util.concurrent.ConcurrentMap<String, java.util.concurrent.Future<GraphCache.Rendered>> pending =
+            new java.util.concurrent.ConcurrentHashMap<String, java.util.concurrent.Future<GraphCache.Rendered>>();
+
+    private final java.util.concurrent.atomic.AtomicLong renderCount = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong renderNanos = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong maxRenderNanos = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong coalescedCount = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong timeoutCount = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong rejectedCount = new java.util.concurrent.atomic.AtomicLong();
+
+    private static GraphCache.Rendered placeholder;
+
+    private RenderScheduler() {
+        int threads = getConfiguredThreads();
+        executor = new java.util.concurrent.ThreadPoolExecutor(
+                threads, threads, 60, java.util.concurrent.TimeUnit.SECONDS,
+                new java.util.concurrent.ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new hudson.util.DaemonThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static RenderScheduler get() {
+        return INSTANCE;
+    }
+
+    private static int getConfiguredThreads() {
+        TestDataPublisher.DescriptorImpl descriptor = TestDataPublisher.DescriptorImpl.get();
+        return descriptor != null ? descriptor.getRenderThreads() : DEFAULT_THREADS;
+    }
+
+    private static int getConfiguredTimeoutSeconds() {
+        TestDataPublisher.DescriptorImpl descriptor = TestDataPublisher.DescriptorImpl.get();
+        return descriptor != null ? descriptor.getRenderTimeoutSeconds() : DEFAULT_TIMEOUT_SECONDS;
+    }
+
+    /**
+     * Applies a change to the number of render threads.
+     */
+    synchronized void setThreads(int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Renders a graph, or waits for the same graph already being rendered.
+     * @param key The graph key, or null if the graph is not shared.
+     * @return The graph or {@link #getPlaceholder()} if it took too long
+     * or too many renders are waiting.
+     */
+    GraphCache.Rendered render(final String key,
+            final java.util.concurrent.Callable<GraphCache.Rendered> render) throws java.io.IOException {
+        java.util.concurrent.FutureTask<GraphCache.Rendered> task =
+                new java.util.concurrent.FutureTask<GraphCache.Rendered>(
+                new java.util.concurrent.Callable<GraphCache.Rendered>() {
+            public GraphCache.Rendered call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    return render.call();
+                } finally {
+                    record(System.nanoTime() - start);
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                // Only this render's own entry; a later render of the key may
+                // already have taken its place.
+                if (key != null) {
+                    pending.remove(key, this);
+                }
+            }
+        };
+        java.util.concurrent.Future<GraphCache.Rendered> future = task;
+        if (key != null) {
+            java.util.concurrent.Future<GraphCache.Rendered> existing = pending.putIfAbsent(key, task);
+            if (existing != null) {
+                coalescedCount.incrementAndGet();
+                future = existing;
+            }
+        }
+        if (future == task) {
+            try {
+                executor.execute(task);
+            } catch (java.util.concurrent.RejectedExecutionException exception) {
+                if (key != null) {
+                    pending.remove(key, task);
+                }
+                rejectedCount.incrementAndGet();
+                return getPlaceholder();
+            }
+        }
+        try {
+            return future.get(getConfiguredTimeoutSeconds(), java.util.concurrent.TimeUnit.SECONDS);
+        } catch (java.util.concurrent.TimeoutException exception) {
+            timeoutCount.incrementAndGet();
+            return getPlaceholder();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw (java.io.IOException)new java.io.InterruptedIOException("Interrupted while rendering a graph")
+                    .initCause(exception);
+        } catch (java.util.concurrent.ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof java.io.IOException) {
+                throw (java.io.IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw (java.io.IOException)new java.io.IOException("Failed to render a graph").initCause(cause);
+        }
+    }
+
+    private void record(long nanos) {
+        renderCount.incrementAndGet();
+        renderNanos.addAndGet(nanos);
+        long max = maxRenderNanos.get();
+        while (nanos > max && !maxRenderNanos.compareAndSet(max, nanos)) {
+            max = maxRenderNanos.get();
+        }
+    }
+
+    /**
+     * @return The image and empty map sent in place of a graph that is
+     * still being rendered.
+     */
+    static synchronized GraphCache.Rendered getPlaceholder() throws java.io.IOException {
+        if (placeholder == null) {
+            java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(
+                    Graph.WIDTH, Graph.HEIGHT, java.awt.image.BufferedImage.TYPE_INT_RGB);
+            java.awt.Graphics2D graphics = image.createGraphics();
+            try {
+                graphics.setColor(java.awt.Color.WHITE);
+                graphics.fillRect(0, 0, Graph.WIDTH, Graph.HEIGHT);
+                graphics.setColor(java.awt.Color.GRAY);
+                graphics.drawRect(0, 0, Graph.WIDTH - 1, Graph.HEIGHT - 1);
+                String message = "The graph is still being drawn. Reload the page to see it.";
+                java.awt.FontMetrics metrics = graphics.getFontMetrics();
+                graphics.drawString(message, (Graph.WIDTH - metrics.stringWidth(message)) / 2, Graph.HEIGHT / 2);
+            } finally {
+                graphics.dispose();
+            }
+            java.io.ByteArrayOutputStream png = new java.io.ByteArrayOutputStream();
+            javax.imageio.ImageIO.write(image, "PNG", png);
+            placeholder = new GraphCache.Rendered(png.toByteArray(), "<map id=\"map\" name=\"map\"></map>");
+        }
+        return placeholder;
+    }
+
+    /** The number of renders waiting for a thread. */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** The number of renders running. */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getRenderCount() {
+        return renderCount.get();
+    }
+
+    /** The number of requests that shared a render already pending. */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /** The number of requests that got the placeholder. */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /** The number of requests that got the placeholder because the queue was full. */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getAverageRenderMillis() {
+        long count = renderCount.get();
+        return count == 0 ? 0 : renderNanos.get() / count / 1000000;
+    }
+
+    public long getMaxRenderMillis() {
+        return maxRenderNanos.get() / 1000000;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.measurement_plots;
+
+/**
+ * The measurements found in a set of junit report files, as sent back from
+ * the machine the reports were scanned on. The reports do not know the ids
+ * Hudson gives to test objects, so cases are identified by class and case
+ * name and are matched against the published {@link hudson.tasks.junit.TestResult}
+ * by {@link #resolve}.
+ *
+ * Only cases with measurements are sent. Each remembers how many cases with
+ * the same class and case name came before it in the reports, so that
+ * repeated names still match up.
+ *
+ * Measurements are kept as flat arrays of names, values, units and samples.
+ * Cases that inherit the output of their suite share the suite's arrays,
+ * which serialization preserves, so a suite's measurements cross the
+ * channel only once.
+ * @author krwalker
+ */
+class ReportMeasurements implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The measurements a test case ends up with. Each array holds a name,
+     * value without its unit, unit or null, and {@link Samples} text or null
+     * for each measurement, and is null if there was no output.
+     */
+    static final class Case implements java.io.Serializable {
+        private static final long serialVersionUID = 3L;
+
+        final String className;
+        final String name;
+        final int occurrence;
+        final String[] stdout;
+        final String[] stderr;
+
+        Case(String className, String name, int occurrence, String[] stdout, String[] stderr) {
+            this.className = className;
+            this.name = name;
+            this.occurrence = occurrence;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+    }
+
+    private final java.util.List<Case> cases = new java.util.ArrayList<Case>();
+
+    void add(Case testCase) {
+        cases.add(testCase);
+    }
+
+    boolean isEmpty() {
+        return cases.isEmpty();
+    }
+
+    /**
+     * Flattens parsed measurements for transfer.
+     * @return The names, values, units and samples or null if there are
+     * none.
+     */
+    static String[] flatten(TestObjectMeasurements measurements) {
+        if (measurements == null || measurements.isEmpty()) {
+            return null;
+        }
+        String[] flattened = new String[measurements.size() * 4];
+        int i = 0;
+        for (Measurement measurement : measurements) {
+            Samples samples = measurement.getSamples();
+            flattened[i++] = measurement.getName();
+            flattened[i++] = measurement.getBareValue();
+            flattened[i++] = measurement.getPrintedUnit();
+            flattened[i++] = samples != null ? samples.toString() : null;
+        }
+        return flattened;
+    }
+
+    private static TestObjectMeasurements expand(String[] flattened) {
+        // Build new measurements for every case, a measurement belongs to
+        // exactly one TestAction.
+        TestObjectMeasurements measurements = new TestObjectMeasurements();
+        for (int i = 0; i < flattened.length; i += 4) {
+            measurements.add(new Measurement(flattened[i], flattened[i + 1], flattened[i + 2],
+                    Samples.fromString(flattened[i + 3])));
+        }
+        return measurements;
+    }
+
+    /**
+     * Matches the scanned cases against the published test result.
+     *
+     * As with {@link TestResultWalker}, measurements from standard
+     * error replace those from standard output for the same case.
+     */
+    BuildMeasurements resolve(hudson.tasks.junit.TestResult testResult) {
+        java.util.Map<String, Case> byName = new java.util.HashMap<String, Case>();
+        for (Case testCase : cases) {
+            byName.put(key(testCase.className, testCase.name, testCase.occurrence), testCase);
+        }
+
+        BuildMeasurements buildMeasurements = new BuildMeasurements();
+        java.util.Map<String, Integer> occurrences = new java.util.HashMap<String, Integer>();
+        for (hudson.tasks.junit.SuiteResult suite : testResult.getSuites()) {
+            for (hudson.tasks.junit.CaseResult caseResult : suite.getCases()) {
+                String key = key(caseResult.getClassName(), caseResult.getName());
+                int occurrence = nextOccurrence(occurrences, key);
+                Case testCase = byName.get(key(caseResult.getClassName(), caseResult.getName(), occurrence));
+                if (testCase == null) {
+                    continue;
+                }
+                String[] flattened = testCase.stderr != null ? testCase.stderr : testCase.stdout;
+                buildMeasurements.put(TestObjectId.fromString(caseResult.getId()), expand(flattened));
+            }
+        }
+        return buildMeasurements;
+    }
+
+    /**
+     * Counts a case name.
+     * @return How many times the name was counted before.
+     */
+    static int nextOccurrence(java.util.Map<String, Integer> occurrences, String key) {
+        Integer occurrence = occurrences.get(key);
+        occurrences.put(key, occurrence == null ? 1 : occurrence + 1);
+        return occurrence == null ? 0 : occurrence;
+    }
+
+    static String key(String className, String name) {
+        return className + '\u0000' + name;
+    }
+
+    private static String key(String className, String name, int occurrence) {
+        return key(className, name) + '\u0000' + occurrence;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.measurement_plots;
+
+/**
+ * Scans junit report files for measurements where the files are, which is
+ * usually the build agent, so that the controller only receives the
+ * resulting {@link ReportMeasurements}.
+ *
+ * Reports are read the way {@link hudson.tasks.junit.SuiteResult} reads them:
+ * a case has its own output only if it has its own system-out or system-err
+ * element, otherwise it inherits the output of its suite.
+ *
+ * Reports are streamed with StAX and outputs are handed to a
+ * {@link StreamingOutputParser} chunk by chunk, so memory use does not
+ * depend on how large the outputs are.
+ * @author krwalker
+ */
+class ReportScanner implements hudson.FilePath.FileCallable<ReportMeasurements> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** A test case seen in the current suite. */
+    private static class CaseState {
+        final String className;
+        final String name;
+        // Null unless the case has its own output.
+        StreamingOutputParser stdout;
+        StreamingOutputParser stderr;
+
+        CaseState(String className, String name) {
+            this.className = className;
+            this.name = name;
+        }
+    }
+
+    /** A test suite being read. */
+    private static class SuiteState {
+        final String name;
+        // The number of elements open inside the suite's element, itself included.
+        final int depth;
+        final java.util.List<CaseState> cases = new java.util.ArrayList<CaseState>();
+        StreamingOutputParser stdout;
+        StreamingOutputParser stderr;
+
+        SuiteState(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private final String includes;
+    private final long buildTime;
+
+    /**
+     * @param includes The Ant-style pattern of report files, relative to the workspace.
+     * @param buildTime When the build started. Older reports are ignored, as
+     * they are by the junit publisher.
+     */
+    ReportScanner(String includes, long buildTime) {
+        this.includes = includes;
+        this.buildTime = buildTime;
+    }
+
+    public ReportMeasurements invoke(java.io.File workspace, hudson.remoting.VirtualChannel channel)
+            throws java.io.IOException {
+        ReportMeasurements reportMeasurements = new ReportMeasurements();
+        OutputParser parser = new OutputParser();
+        java.util.Map<String, Integer> occurrences = new java.util.HashMap<String, Integer>();
+        javax.xml.stream.XMLInputFactory factory = javax.xml.stream.XMLInputFactory.newInstance();
+        // Large outputs must arrive in pieces, and reports have no business
+        // pulling in other files.
+        factory.setProperty(javax.xml.stream.XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        factory.setProperty(javax.xml.stream.XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        org.apache.tools.ant.DirectoryScanner scanner =
+                hudson.Util.createFileSet(workspace, includes).getDirectoryScanner();
+        for (String relativePath : scanner.getIncludedFiles()) {
+            java.io.File report = new java.io.File(scanner.getBasedir(), relativePath);
+            // Same slack as the junit publisher gives to coarse file system clocks.
+            if (buildTime - 3000 > report.lastModified()) {
+                continue;
+            }
+            scan(report, factory, parser, occurrences, reportMeasurements);
+        }
+        return reportMeasurements;
+    }
+
+    private static void scan(java.io.File report, javax.xml.stream.XMLInputFactory factory, OutputParser parser,
+            java.util.Map<String, Integer> occurrences, ReportMeasurements reportMeasurements)
+            throws java.io.IOException {
+        java.io.InputStream stream = new java.io.BufferedInputStream(new java.io.FileInputStream(report));
+        try {
+            javax.xml.stream.XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            try {
+                scan(reader, parser, occurrences, reportMeasurements);
+            } finally {
+                reader.close();
+            }
+        } catch (javax.xml.stream.XMLStreamException exception) {
+            throw new java.io.IOException("Failed to read " + report + ": " + exception.getMessage());
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void scan(javax.xml.stream.XMLStreamReader reader, OutputParser parser,
+            java.util.Map<String, Integer> occurrences, ReportMeasurements reportMeasurements)
+            throws javax.xml.stream.XMLStreamException {
+        java.util.LinkedList<SuiteState> suites = new java.util.LinkedList<SuiteState>();
+        CaseState currentCase = null;
+        StreamingOutputParser output = null;
+        String parent = null;
+        java.util.LinkedList<String> path = new java.util.LinkedList<String>();
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case javax.xml.stream.XMLStreamConstants.START_ELEMENT:
+                    String element = reader.getLocalName();
+                    parent = path.peek();
+                    path.push(element);
+                    if (element.equals("testsuite") && (parent == null || parent.equals("testsuites"))) {
+                        suites.push(new SuiteState(reader.getAttributeValue(null, "name"), path.size()));
+                    } else if (element.equals("testcase") && "testsuite".equals(parent) && !suites.isEmpty()) {
+                        String className = reader.getAttributeValue(null, "classname");
+                        if (className == null) {
+                            className = suites.peek().name;
+                        }
+                        currentCase = new CaseState(className, reader.getAttributeValue(null, "name"));
+                    } else if (element.equals("system-out") || element.equals("system-err")) {
+                        boolean isStdout = element.equals("system-out");
+                        if ("testcase".equals(parent) && currentCase != null) {
+                            output = new StreamingOutputParser(parser);
+                            if (isStdout) {
+                                currentCase.stdout = output;
+                            } else {
+                                currentCase.stderr = output;
+                            }
+                        } else if ("testsuite".equals(parent) && !suites.isEmpty()) {
+                            output = new StreamingOutputParser(parser);
+                            if (isStdout) {
+                                suites.peek().stdout = output;
+                            } else {
+                                suites.peek().stderr = output;
+                            }
+                        }
+                    }
+                    break;
+                case javax.xml.stream.XMLStreamConstants.CHARACTERS:
+                case javax.xml.stream.XMLStreamConstants.CDATA:
+                case javax.xml.stream.XMLStreamConstants.SPACE:
+                    if (output != null) {
+                        output.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+                case javax.xml.stream.XMLStreamConstants.END_ELEMENT:
+                    String ended = path.pop();
+                    if (ended.equals("system-out") || ended.equals("system-err")) {
+                        output = null;
+                    } else if (ended.equals("testcase") && currentCase != null) {
+                        suites.peek().cases.add(currentCase);
+                        currentCase = null;
+                    } else if (ended.equals("testsuite") && !suites.isEmpty()
+                            && path.size() + 1 == suites.peek().depth) {
+                        // Only the suite pushed for this element, not one nested in it.
+                        finishSuite(suites.pop(), occurrences, reportMeasurements);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static void finishSuite(SuiteState suite,
+            java.util.Map<String, Integer> occurrences, ReportMeasurements reportMeasurements) {
+        String[] suiteStdout = finish(suite.stdout);
+        String[] suiteStderr = finish(suite.stderr);
+        for (CaseState testCase : suite.cases) {
+            int occurrence = ReportMeasurements.nextOccurrence(
+                    occurrences, ReportMeasurements.key(testCase.className, testCase.name));
+            String[] stdout = testCase.stdout != null ? finish(testCase.stdout) : suiteStdout;
+            String[] stderr = testCase.stderr != null ? finish(testCase.stderr) : suiteStderr;
+            if (stdout != null || stderr != null) {
+                reportMeasurements.add(new ReportMeasurements.Case(
+                        testCase.className, testCase.name, occurrence, stdout, stderr));
+            }
+        }
+    }
+
+    private static String[] finish(StreamingOutputParser output) {
+        if (output == null) {
+            return null;
+        }
+        return ReportMeasurements.flatten(output.finish());
+    }
+}
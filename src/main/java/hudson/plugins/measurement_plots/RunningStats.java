@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * The count, mean and variance of a stream of values, kept with Welford's
+ * method so that no values need to be kept and long streams do not lose
+ * precision.
+ * @author krwalker
+ */
+public class RunningStats {
+
+    private long count;
+    private double mean;
+    // The sum of squared differences from the mean.
+    private double m2;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public RunningStats() {
+    }
+
+    void add(double value) {
+        ++count;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the values of other statistics, with the pairwise update of Chan,
+     * Golub and LeVeque.
+     */
+    void merge(RunningStats other) {
+        if (other.count == 0) {
+            return;
+        }
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        m2 += other.m2 + delta * delta * count * other.count / total;
+        count = total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The mean, or zero if there are no values.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return The sample variance, or zero if there are fewer than two values.
+     */
+    public double getVariance() {
+        return count < 2 ? 0 : m2 / (count - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * @return The smallest value, or positive infinity if there are none.
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return The largest value, or negative infinity if there are none.
+     */
+    public double getMax() {
+        return max;
+    }
+
+    void write(java.io.DataOutputStream out) throws java.io.IOException {
+        MeasurementStore.writeVarLong(out, count);
+        out.writeDouble(mean);
+        out.writeDouble(m2);
+        out.writeDouble(min);
+        out.writeDouble(max);
+    }
+
+    static RunningStats read(java.io.DataInputStream in) throws java.io.IOException {
+        RunningStats stats = new RunningStats();
+        stats.count = MeasurementStore.readVarLong(in);
+        stats.mean = in.readDouble();
+        stats.m2 = in.readDouble();
+        stats.min = in.readDouble();
+        stats.max = in.readDouble();
+        return stats;
+    }
+}
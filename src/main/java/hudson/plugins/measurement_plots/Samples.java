@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * The summary of a measurement that a test printed several times, such as
+ * once per iteration of a benchmark. Only the summary is kept, not the
+ * values, and the measurement's value is the median.
+ * @author krwalker
+ */
+@org.kohsuke.stapler.export.ExportedBean(defaultVisibility = 2)
+public class Samples {
+
+    private final long count;
+    private final double min;
+    private final double p5;
+    private final double median;
+    private final double p95;
+    private final double max;
+    private final double mean;
+
+    Samples(long count, double min, double p5, double median, double p95, double max, double mean) {
+        this.count = count;
+        this.min = min;
+        this.p5 = p5;
+        this.median = median;
+        this.p95 = p95;
+        this.max = max;
+        this.mean = mean;
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public long getCount() {
+        return count;
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public double getMin() {
+        return min;
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public double getP5() {
+        return p5;
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public double getMedian() {
+        return median;
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public double getP95() {
+        return p95;
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public double getMax() {
+        return max;
+    }
+
+    @org.kohsuke.stapler.export.Exported
+    public double getMean() {
+        return mean;
+    }
+
+    void write(java.io.DataOutputStream out) throws java.io.IOException {
+        MeasurementStore.writeVarLong(out, count);
+        out.writeDouble(min);
+        out.writeDouble(p5);
+        out.writeDouble(median);
+        out.writeDouble(p95);
+        out.writeDouble(max);
+        out.writeDouble(mean);
+    }
+
+    static Samples read(java.io.DataInputStream in) throws java.io.IOException {
+        long count = MeasurementStore.readVarLong(in);
+        return new Samples(count, in.readDouble(), in.readDouble(), in.readDouble(),
+                in.readDouble(), in.readDouble(), in.readDouble());
+    }
+
+    /**
+     * @return The summary as text that {@link #fromString} reads back
+     * exactly, for sending it between machines.
+     */
+    @Override
+    public String toString() {
+        return count + " " + min + " " + p5 + " " + median + " " + p95 + " " + max + " " + mean;
+    }
+
+    /**
+     * @return The summary written by {@link #toString}, or null if the text
+     * is not one.
+     */
+    static Samples fromString(String text) {
+        if (text == null) {
+            return null;
+        }
+        String[] fields = text.split(" ");
+        if (fields.length != 7) {
+            return null;
+        }
+        try {
+            return new Samples(Long.parseLong(fields[0]), Double.parseDouble(fields[1]),
+                    Double.parseDouble(fields[2]), Double.parseDouble(fields[3]), Double.parseDouble(fields[4]),
+                    Double.parseDouble(fields[5]), Double.parseDouble(fields[6]));
+        } catch (NumberFormatException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * Folds the values of a measurement as they are parsed.
+     */
+    static final class Folder {
+        private final RunningStats stats = new RunningStats();
+        private final QuantileSketch sketch = new QuantileSketch();
+
+        void add(double value) {
+            stats.add(value);
+            sketch.add(value);
+        }
+
+        Samples summarize() {
+            return new Samples(stats.getCount(), stats.getMin(), sketch.getQuantile(0.05),
+                    sketch.getQuantile(0.5), sketch.getQuantile(0.95), stats.getMax(), stats.getMean());
+        }
+    }
+
+    /**
+     * @return The value as a measurement's text, without a fraction if it
+     * is a whole number, and never in scientific notation.
+     */
+    static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        // Enough digits for any printed value, but not the error left by
+        // converting to and from a base unit.
+        return new java.math.BigDecimal(value).round(new java.math.MathContext(12))
+                .stripTrailingZeros().toPlainString();
+    }
+}
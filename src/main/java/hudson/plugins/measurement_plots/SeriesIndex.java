@@ -0,0 +1,713 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * The measurements of every build of a job, kept by test object and
+ * measurement name so that the history of a measurement can be read without
+ * loading any build.
+ * <p>
+ * Test objects are spread over {@link #BUCKETS} buckets by id. Publishing a
+ * build appends its measurements to the log of each bucket. Once a log grows
+ * past {@link #COMPACT_LENGTH} it is merged into the bucket's segment, which
+ * holds each series contiguously, sorted by test object id and measurement
+ * name, with an index of the series at the end.
+ * <p>
+ * Builds published before the index existed are not in it until it is
+ * rebuilt; {@link #getIndexedSince()} tells which builds it covers.
+ * @author krwalker
+ */
+final class SeriesIndex {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(SeriesIndex.class.getName());
+
+    /** The directory within the job directory. */
+    static final String DIRECTORY_NAME = "measurement-plots";
+
+    static final int BUCKETS = 64;
+
+    /** The log length at which a log is merged into its segment. */
+    static final long COMPACT_LENGTH = 1L << 20;
+
+    private static final String SINCE_FILE_NAME = "since";
+    private static final int SEGMENT_MAGIC = 0x4d505353;
+    private static final int SEGMENT_VERSION = 3;
+    // Older segments have the same layout, without units or samples.
+    private static final int SEGMENT_VERSION_2 = 2;
+    private static final int SEGMENT_VERSION_1 = 1;
+    // The segment trailer is the index offset and the series count.
+    private static final int TRAILER_LENGTH = 12;
+    // Each index entry is the key hash, the series offset and the series length.
+    private static final int INDEX_ENTRY_LENGTH = 16;
+
+    private static final java.util.Map<String, SeriesIndex> indexes =
+            new java.util.HashMap<String, SeriesIndex>();
+
+    /**
+     * @return The index of the job.
+     */
+    static SeriesIndex of(hudson.model.Job<?, ?> job) {
+        java.io.File rootDir = job.getRootDir();
+        synchronized (indexes) {
+            SeriesIndex index = indexes.get(rootDir.getPath());
+            if (index == null) {
+                index = new SeriesIndex(new java.io.File(rootDir, DIRECTORY_NAME));
+                indexes.put(rootDir.getPath(), index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Forgets the index of a job that was deleted or renamed.
+     * @param rootDir The job directory the index was of.
+     */
+    static void forget(java.io.File rootDir) {
+        synchronized (indexes) {
+            indexes.remove(rootDir.getPath());
+        }
+    }
+
+    private final java.io.File directory;
+
+    /** Which bucket logs have been checked for a partly written record. */
+    private final boolean[] recovered = new boolean[BUCKETS];
+
+    private volatile boolean rebuilding = false;
+
+    // The builds appended while the index is rebuilt, which are added to
+    // the rebuilt index again.
+    private final java.util.List<Integer> publishedWhileRebuilding = new java.util.ArrayList<Integer>();
+
+    private SeriesIndex(java.io.File directory) {
+        this.directory = directory;
+    }
+
+    /** A series key, ordered by test object id and then measurement name. */
+    private static final class Key implements Comparable<Key> {
+        final String id;
+        final String name;
+
+        Key(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int compareTo(Key that) {
+            int order = id.compareTo(that.id);
+            return order != 0 ? order : name.compareTo(that.name);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && compareTo((Key)other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(id, name);
+        }
+    }
+
+    private static int hash(String id, String name) {
+        return id.hashCode() * 31 + name.hashCode();
+    }
+
+    static int bucketOf(String id) {
+        return (id.hashCode() & Integer.MAX_VALUE) % BUCKETS;
+    }
+
+    private java.io.File getLogFile(int bucket) {
+        return new java.io.File(directory, "bucket-" + bucket + ".log");
+    }
+
+    private java.io.File getSegmentFile(int bucket) {
+        return new java.io.File(directory, "bucket-" + bucket + ".seg");
+    }
+
+    private java.io.File getSinceFile() {
+        return new java.io.File(directory, SINCE_FILE_NAME);
+    }
+
+    /**
+     * @return The number of the first build the index holds the measurements
+     * of, or {@link Integer#MAX_VALUE} if it holds none. Every later build
+     * that has measurements is in the index.
+     */
+    int getIndexedSince() {
+        if (rebuilding) {
+            return Integer.MAX_VALUE;
+        }
+        java.io.File sinceFile = getSinceFile();
+        if (!sinceFile.exists()) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            return Integer.parseInt(hudson.Util.loadFile(sinceFile).trim());
+        } catch (java.io.IOException exception) {
+            LOGGER.log(java.util.logging.Level.WARNING, "Failed to read " + sinceFile, exception);
+        } catch (NumberFormatException exception) {
+            LOGGER.log(java.util.logging.Level.WARNING, "Failed to read " + sinceFile, exception);
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private void writeSince(int buildNumber) throws java.io.IOException {
+        java.io.FileOutputStream out = new java.io.FileOutputStream(getSinceFile());
+        try {
+            out.write(Integer.toString(buildNumber).getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    /**
+     * Adds the measurements of a build. If this fails the index stops
+     * claiming the builds published so far, so that their measurements are
+     * read from the builds until the index is rebuilt.
+     */
+    synchronized void append(int buildNumber, BuildMeasurements buildMeasurements) throws java.io.IOException {
+        if (rebuilding) {
+            publishedWhileRebuilding.add(buildNumber);
+        }
+        boolean started = !getSinceFile().exists();
+        try {
+            if (started) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new java.io.IOException("Failed to create " + directory);
+                }
+                writeSince(buildNumber);
+            }
+            appendToLogs(buildNumber, buildMeasurements);
+        } catch (java.io.IOException exception) {
+            getSinceFile().delete();
+            throw exception;
+        }
+    }
+
+    private void appendToLogs(int buildNumber, BuildMeasurements buildMeasurements) throws java.io.IOException {
+        java.util.List<java.util.List<java.util.Map.Entry<TestObjectId, TestObjectMeasurements>>> buckets =
+                new java.util.ArrayList<java.util.List<java.util.Map.Entry<TestObjectId, TestObjectMeasurements>>>();
+        for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+            buckets.add(new java.util.ArrayList<java.util.Map.Entry<TestObjectId, TestObjectMeasurements>>());
+        }
+        for (java.util.Map.Entry<TestObjectId, TestObjectMeasurements> entry : buildMeasurements.entrySet()) {
+            buckets.get(bucketOf(entry.getKey().toString())).add(entry);
+        }
+        for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+            java.util.List<java.util.Map.Entry<TestObjectId, TestObjectMeasurements>> entries = buckets.get(bucket);
+            if (entries.isEmpty()) {
+                continue;
+            }
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            java.io.DataOutputStream record = new java.io.DataOutputStream(bytes);
+            MeasurementStore.writeVarInt(record, buildNumber);
+            MeasurementStore.writeVarInt(record, entries.size());
+            for (java.util.Map.Entry<TestObjectId, TestObjectMeasurements> entry : entries) {
+                MeasurementStore.writeString(record, entry.getKey().toString());
+                MeasurementStore.writeVarInt(record, entry.getValue().size());
+                for (Measurement measurement : entry.getValue()) {
+                    MeasurementStore.writeString(record, measurement.getName());
+                    MeasurementStore.writeMeasurement(record, measurement);
+                }
+            }
+            record.flush();
+            appendRecord(bucket, bytes.toByteArray());
+            if (getLogFile(bucket).length() > COMPACT_LENGTH) {
+                compact(bucket);
+            }
+        }
+    }
+
+    /**
+     * Writes one length-prefixed record to the end of a log, first cutting
+     * off any record left partly written by a crash.
+     */
+    private void appendRecord(int bucket, byte[] record) throws java.io.IOException {
+        java.io.File logFile = getLogFile(bucket);
+        if (!recovered[bucket]) {
+            truncateLog(logFile);
+            recovered[bucket] = true;
+        }
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream(record.length + 5);
+        java.io.DataOutputStream out = new java.io.DataOutputStream(bytes);
+        MeasurementStore.writeVarInt(out, record.length);
+        out.write(record);
+        out.flush();
+        java.io.FileOutputStream file = new java.io.FileOutputStream(logFile, true);
+        try {
+            bytes.writeTo(file);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void truncateLog(java.io.File logFile) throws java.io.IOException {
+        if (!logFile.exists()) {
+            return;
+        }
+        java.io.RandomAccessFile file = new java.io.RandomAccessFile(logFile, "rw");
+        try {
+            long length = file.length();
+            long end = 0;
+            try {
+                while (end < length) {
+                    file.seek(end);
+                    long next = MeasurementStore.readVarInt(file);
+                    next += file.getFilePointer();
+                    if (next > length) {
+                        break;
+                    }
+                    end = next;
+                }
+            } catch (java.io.IOException exception) {
+                // A partly written length.
+            }
+            if (end < length) {
+                LOGGER.warning("Dropping a partly written record from " + logFile);
+                file.setLength(end);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads each complete record of a log.
+     */
+    private static java.util.List<byte[]> readLog(java.io.File logFile) throws java.io.IOException {
+        java.util.List<byte[]> records = new java.util.ArrayList<byte[]>();
+        if (!logFile.exists()) {
+            return records;
+        }
+        java.io.DataInputStream in = new java.io.DataInputStream(
+                new java.io.BufferedInputStream(new java.io.FileInputStream(logFile)));
+        try {
+            while (true) {
+                byte[] record;
+                try {
+                    record = new byte[MeasurementStore.readVarInt(in)];
+                    in.readFully(record);
+                } catch (java.io.EOFException exception) {
+                    // The end, or a partly written record that the next
+                    // append cuts off.
+                    break;
+                }
+                records.add(record);
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    /**
+     * Reads the series of one measurement of one test object.
+     * @return The measurements by build number, whose values are null for
+     * measurements without a value.
+     */
+    java.util.SortedMap<Integer, Measurement> read(String id, String name) throws java.io.IOException {
+        return read(id, java.util.Collections.singleton(name)).get(name);
+    }
+
+    /**
+     * Reads the series of several measurements of one test object, reading
+     * the bucket's log only once.
+     * @return The measurements by build number for each name, whose values
+     * are null for measurements without a value. Every name has a series, if
+     * empty.
+     */
+    synchronized java.util.Map<String, java.util.SortedMap<Integer, Measurement>> read(
+            String id, java.util.Collection<String> names) throws java.io.IOException {
+        java.util.Map<String, java.util.SortedMap<Integer, Measurement>> series =
+                new java.util.HashMap<String, java.util.SortedMap<Integer, Measurement>>();
+        int bucket = bucketOf(id);
+        for (String name : names) {
+            java.util.SortedMap<Integer, Measurement> values = new java.util.TreeMap<Integer, Measurement>();
+            readSegmentSeries(getSegmentFile(bucket), new Key(id, name), values);
+            series.put(name, values);
+        }
+        // Later records replace earlier ones for the same build.
+        for (byte[] record : readLog(getLogFile(bucket))) {
+            java.io.DataInputStream in = new java.io.DataInputStream(new java.io.ByteArrayInputStream(record));
+            int buildNumber = MeasurementStore.readVarInt(in);
+            int testCount = MeasurementStore.readVarInt(in);
+            for (int test = 0; test < testCount; ++test) {
+                boolean matches = MeasurementStore.readString(in).equals(id);
+                int measurementCount = MeasurementStore.readVarInt(in);
+                for (int measurement = 0; measurement < measurementCount; ++measurement) {
+                    Measurement value = MeasurementStore.readMeasurement(in, MeasurementStore.readString(in));
+                    java.util.SortedMap<Integer, Measurement> values = matches ? series.get(value.getName()) : null;
+                    if (values != null) {
+                        values.put(buildNumber, value);
+                    }
+                }
+            }
+        }
+        return series;
+    }
+
+    private static void readSegmentSeries(java.io.File segmentFile, Key key,
+            java.util.SortedMap<Integer, Measurement> series) throws java.io.IOException {
+        if (!segmentFile.exists()) {
+            return;
+        }
+        java.io.RandomAccessFile file = new java.io.RandomAccessFile(segmentFile, "r");
+        try {
+            checkSegmentHeader(file, segmentFile);
+            file.seek(file.length() - TRAILER_LENGTH);
+            long indexOffset = file.readLong();
+            int seriesCount = file.readInt();
+            int hash = key.hashCode();
+            // Find the first entry with the hash.
+            int low = 0;
+            int high = seriesCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                file.seek(indexOffset + (long)middle * INDEX_ENTRY_LENGTH);
+                if (file.readInt() < hash) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            // Check every series with the hash.
+            for (int entry = low; entry < seriesCount; ++entry) {
+                file.seek(indexOffset + (long)entry * INDEX_ENTRY_LENGTH);
+                if (file.readInt() != hash) {
+                    break;
+                }
+                long offset = file.readLong();
+                int length = file.readInt();
+                byte[] block = new byte[length];
+                file.seek(offset);
+                file.readFully(block);
+                java.io.DataInputStream in = new java.io.DataInputStream(new java.io.ByteArrayInputStream(block));
+                if (readKey(in).equals(key)) {
+                    readPoints(in, key, series);
+                    return;
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void checkSegmentHeader(java.io.DataInput in, java.io.File segmentFile) throws java.io.IOException {
+        if (in.readInt() != SEGMENT_MAGIC) {
+            throw new java.io.IOException(segmentFile + " is not a measurement series segment");
+        }
+        int version = in.readInt();
+        if (version != SEGMENT_VERSION && version != SEGMENT_VERSION_2 && version != SEGMENT_VERSION_1) {
+            throw new java.io.IOException(segmentFile + " is not a measurement series segment");
+        }
+    }
+
+    private static Key readKey(java.io.DataInputStream in) throws java.io.IOException {
+        String id = MeasurementStore.readString(in);
+        return new Key(id, MeasurementStore.readString(in));
+    }
+
+    private static void readPoints(java.io.DataInputStream in, Key key,
+            java.util.SortedMap<Integer, Measurement> series) throws java.io.IOException {
+        int pointCount = MeasurementStore.readVarInt(in);
+        int buildNumber = 0;
+        for (int point = 0; point < pointCount; ++point) {
+            // Build numbers are stored as increments.
+            buildNumber += MeasurementStore.readVarInt(in);
+            series.put(buildNumber, MeasurementStore.readMeasurement(in, key.name));
+        }
+    }
+
+    /**
+     * Merges a bucket's log into its segment. Only the log is held in
+     * memory; the old segment is read and the new one written a series at a
+     * time.
+     */
+    private void compact(int bucket) throws java.io.IOException {
+        java.io.File logFile = getLogFile(bucket);
+        java.io.File segmentFile = getSegmentFile(bucket);
+        java.io.File temporaryFile = new java.io.File(directory, segmentFile.getName() + ".tmp");
+
+        java.util.SortedMap<Key, java.util.SortedMap<Integer, Measurement>> logged =
+                new java.util.TreeMap<Key, java.util.SortedMap<Integer, Measurement>>();
+        for (byte[] record : readLog(logFile)) {
+            java.io.DataInputStream in = new java.io.DataInputStream(new java.io.ByteArrayInputStream(record));
+            int buildNumber = MeasurementStore.readVarInt(in);
+            int testCount = MeasurementStore.readVarInt(in);
+            for (int test = 0; test < testCount; ++test) {
+                String id = MeasurementStore.readString(in);
+                int measurementCount = MeasurementStore.readVarInt(in);
+                for (int measurement = 0; measurement < measurementCount; ++measurement) {
+                    Key key = new Key(id, MeasurementStore.readString(in));
+                    java.util.SortedMap<Integer, Measurement> series = logged.get(key);
+                    if (series == null) {
+                        series = new java.util.TreeMap<Integer, Measurement>();
+                        logged.put(key, series);
+                    }
+                    series.put(buildNumber, MeasurementStore.readMeasurement(in, key.name));
+                }
+            }
+        }
+
+        java.io.DataInputStream old = null;
+        int oldCount = 0;
+        if (segmentFile.exists()) {
+            java.io.RandomAccessFile file = new java.io.RandomAccessFile(segmentFile, "r");
+            try {
+                file.seek(file.length() - TRAILER_LENGTH);
+                file.readLong();
+                oldCount = file.readInt();
+            } finally {
+                file.close();
+            }
+            old = new java.io.DataInputStream(
+                    new java.io.BufferedInputStream(new java.io.FileInputStream(segmentFile)));
+        }
+        SegmentWriter writer = new SegmentWriter(temporaryFile);
+        try {
+            if (old != null) {
+                checkSegmentHeader(old, segmentFile);
+            }
+            java.util.Iterator<java.util.Map.Entry<Key, java.util.SortedMap<Integer, Measurement>>> logIterator =
+                    logged.entrySet().iterator();
+            java.util.Map.Entry<Key, java.util.SortedMap<Integer, Measurement>> logEntry =
+                    logIterator.hasNext() ? logIterator.next() : null;
+            for (int index = 0; index < oldCount; ++index) {
+                byte[] block = new byte[MeasurementStore.readVarInt(old)];
+                old.readFully(block);
+                java.io.DataInputStream in = new java.io.DataInputStream(new java.io.ByteArrayInputStream(block));
+                Key key = readKey(in);
+                while (logEntry != null && logEntry.getKey().compareTo(key) < 0) {
+                    writer.write(logEntry.getKey(), logEntry.getValue());
+                    logEntry = logIterator.hasNext() ? logIterator.next() : null;
+                }
+                java.util.SortedMap<Integer, Measurement> series = new java.util.TreeMap<Integer, Measurement>();
+                readPoints(in, key, series);
+                if (logEntry != null && logEntry.getKey().equals(key)) {
+                    series.putAll(logEntry.getValue());
+                    logEntry = logIterator.hasNext() ? logIterator.next() : null;
+                }
+                writer.write(key, series);
+            }
+            while (logEntry != null) {
+                writer.write(logEntry.getKey(), logEntry.getValue());
+                logEntry = logIterator.hasNext() ? logIterator.next() : null;
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+            if (old != null) {
+                old.close();
+            }
+        }
+
+        // Windows will not rename over an existing file.
+        if (!temporaryFile.renameTo(segmentFile)) {
+            segmentFile.delete();
+            if (!temporaryFile.renameTo(segmentFile)) {
+                temporaryFile.delete();
+                throw new java.io.IOException("Failed to rename " + temporaryFile + " to " + segmentFile);
+            }
+        }
+        // Should this not happen, the log is merged again, to the same effect.
+        logFile.delete();
+    }
+
+    /** Writes the series of a segment in order, then their index. */
+    private static final class SegmentWriter {
+        private final java.io.DataOutputStream out;
+        private long offset;
+        private int[] hashes = new int[64];
+        private long[] offsets = new long[64];
+        private int[] lengths = new int[64];
+        private int count = 0;
+
+        SegmentWriter(java.io.File file) throws java.io.IOException {
+            out = new java.io.DataOutputStream(
+                    new java.io.BufferedOutputStream(new java.io.FileOutputStream(file)));
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(SEGMENT_VERSION);
+            offset = 8;
+        }
+
+        void write(Key key, java.util.SortedMap<Integer, Measurement> series) throws java.io.IOException {
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            java.io.DataOutputStream block = new java.io.DataOutputStream(bytes);
+            MeasurementStore.writeString(block, key.id);
+            MeasurementStore.writeString(block, key.name);
+            MeasurementStore.writeVarInt(block, series.size());
+            int previous = 0;
+            for (java.util.Map.Entry<Integer, Measurement> point : series.entrySet()) {
+                MeasurementStore.writeVarInt(block, point.getKey() - previous);
+                MeasurementStore.writeMeasurement(block, point.getValue());
+                previous = point.getKey();
+            }
+            block.flush();
+
+            java.io.ByteArrayOutputStream prefix = new java.io.ByteArrayOutputStream(5);
+            MeasurementStore.writeVarInt(new java.io.DataOutputStream(prefix), bytes.size());
+            prefix.writeTo(out);
+            offset += prefix.size();
+
+            if (count == hashes.length) {
+                hashes = java.util.Arrays.copyOf(hashes, count * 2);
+                offsets = java.util.Arrays.copyOf(offsets, count * 2);
+                lengths = java.util.Arrays.copyOf(lengths, count * 2);
+            }
+            hashes[count] = key.hashCode();
+            offsets[count] = offset;
+            lengths[count] = bytes.size();
+            ++count;
+
+            bytes.writeTo(out);
+            offset += bytes.size();
+        }
+
+        void finish() throws java.io.IOException {
+            Integer[] order = new Integer[count];
+            for (int index = 0; index < count; ++index) {
+                order[index] = index;
+            }
+            java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+                public int compare(Integer left, Integer right) {
+                    int leftHash = hashes[left];
+                    int rightHash = hashes[right];
+                    return leftHash < rightHash ? -1 : (leftHash == rightHash ? 0 : 1);
+                }
+            });
+            long indexOffset = offset;
+            for (Integer index : order) {
+                out.writeInt(hashes[index]);
+                out.writeLong(offsets[index]);
+                out.writeInt(lengths[index]);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(count);
+        }
+
+        void close() throws java.io.IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Replaces the index, and the ChangePointDetector's state, with the
+     * measurements stored in every build of the job. They are gathered into
+     * another directory without holding the index, so builds still publish
+     * and histories are still read meanwhile. The builds published meanwhile
+     * are added again just before that directory replaces this one.
+     */
+    void rebuild(hudson.model.Job<?, ?> job) throws java.io.IOException {
+        synchronized (this) {
+            if (rebuilding) {
+                return;
+            }
+            rebuilding = true;
+            publishedWhileRebuilding.clear();
+        }
+        java.io.File rebuiltDirectory = new java.io.File(directory.getPath() + ".rebuild");
+        StatisticsStore.of(job).clear();
+        try {
+            hudson.Util.deleteRecursive(rebuiltDirectory);
+            if (!rebuiltDirectory.mkdirs()) {
+                throw new java.io.IOException("Failed to create " + rebuiltDirectory);
+            }
+            SeriesIndex rebuilt = new SeriesIndex(rebuiltDirectory);
+            // The change points are found again from the same measurements.
+            ChangePointDetector rebuiltDetector = new ChangePointDetector(rebuiltDirectory);
+            // A build that is still running may already have published.
+            java.util.List<? extends hudson.model.Run<?, ?>> builds =
+                    new java.util.ArrayList<hudson.model.Run<?, ?>>(job.getBuilds());
+            java.util.Collections.reverse(builds);
+            for (hudson.model.Run<?, ?> build : builds) {
+                rebuilt.appendStored(build, rebuiltDetector);
+            }
+
+            ChangePointDetector detector = ChangePointDetector.of(job);
+            synchronized (this) {
+                synchronized (detector) {
+                    for (int buildNumber : publishedWhileRebuilding) {
+                        hudson.model.Run<?, ?> build = job.getBuildByNumber(buildNumber);
+                        if (build != null) {
+                            rebuilt.appendStored(build, rebuiltDetector);
+                        }
+                    }
+                    rebuilt.writeSince(0);
+                    replaceWith(rebuiltDirectory);
+                    java.util.Arrays.fill(recovered, false);
+                    detector.reset();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                rebuilding = false;
+                publishedWhileRebuilding.clear();
+            }
+            try {
+                hudson.Util.deleteRecursive(rebuiltDirectory);
+            } catch (java.io.IOException exception) {
+                LOGGER.log(java.util.logging.Level.WARNING, "Failed to delete " + rebuiltDirectory, exception);
+            }
+            // Statistics gathered meanwhile may have come from the old index.
+            StatisticsStore.of(job).clear();
+            // The graphs mark the change points.
+            GraphCache.get().invalidate(GraphCache.keyOf(job));
+        }
+    }
+
+    /**
+     * Adds the measurements stored in a build, if it has any.
+     */
+    private void appendStored(hudson.model.Run<?, ?> build, ChangePointDetector detector)
+            throws java.io.IOException {
+        MeasurementStore store = new MeasurementStore(build.getRootDir());
+        if (store.hasMeasurements()) {
+            BuildMeasurements buildMeasurements = store.read();
+            appendToLogs(build.getNumber(), buildMeasurements);
+            detector.update(build.getNumber(), buildMeasurements);
+        }
+    }
+
+    /**
+     * Moves a rebuilt directory in place of this index's directory.
+     */
+    private void replaceWith(java.io.File rebuiltDirectory) throws java.io.IOException {
+        java.io.File oldDirectory = new java.io.File(directory.getPath() + ".old");
+        hudson.Util.deleteRecursive(oldDirectory);
+        if (directory.exists() && !directory.renameTo(oldDirectory)) {
+            throw new java.io.IOException("Failed to rename " + directory + " to " + oldDirectory);
+        }
+        if (!rebuiltDirectory.renameTo(directory)) {
+            oldDirectory.renameTo(directory);
+            throw new java.io.IOException("Failed to rename " + rebuiltDirectory + " to " + directory);
+        }
+        hudson.Util.deleteRecursive(oldDirectory);
+    }
+}
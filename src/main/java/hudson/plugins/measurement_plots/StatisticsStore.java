@@ -0,0 +1,298 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * The {@link MeasurementStatistics} of every build of the measurements of
+ * a job that have been looked at, updated as each build publishes.
+ * <p>
+ * A measurement's statistics are first gathered from the job's SeriesIndex
+ * when they are asked for. From then on each published build adds its
+ * value, so they are never gathered again. Keeping statistics for every
+ * measurement of a job would mean rewriting them all for every build, so
+ * only the {@link #MAX_SERIES} measurements looked at last are kept.
+ * Statistics gathered when looked at are only written with the next build's,
+ * so viewing pages does not rewrite the file.
+ * <p>
+ * The store is never locked while the SeriesIndex is read, so the index may
+ * clear the store without the two waiting on each other.
+ * @author krwalker
+ */
+final class StatisticsStore {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(StatisticsStore.class.getName());
+
+    static final int MAX_SERIES = 1000;
+
+    private static final String FILE_NAME = "statistics.bin";
+    private static final int VERSION = 1;
+
+    private static final java.util.Map<String, StatisticsStore> stores =
+            new java.util.HashMap<String, StatisticsStore>();
+
+    /**
+     * @return The store of the job.
+     */
+    static StatisticsStore of(hudson.model.Job<?, ?> job) {
+        java.io.File rootDir = job.getRootDir();
+        synchronized (stores) {
+            StatisticsStore store = stores.get(rootDir.getPath());
+            if (store == null) {
+                store = new StatisticsStore(job.getRootDir(), SeriesIndex.of(job));
+                stores.put(rootDir.getPath(), store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Forgets the store of a job that was deleted or renamed.
+     * @param rootDir The job directory the store was of.
+     */
+    static void forget(java.io.File rootDir) {
+        synchronized (stores) {
+            stores.remove(rootDir.getPath());
+        }
+    }
+
+    /** The statistics of one measurement. */
+    static final class Entry {
+        final String testObjectId;
+        final String name;
+        final int firstBuild;
+        int lastBuild;
+        final MeasurementStatistics statistics;
+
+        Entry(String testObjectId, String name, int firstBuild, int lastBuild, MeasurementStatistics statistics) {
+            this.testObjectId = testObjectId;
+            this.name = name;
+            this.firstBuild = firstBuild;
+            this.lastBuild = lastBuild;
+            this.statistics = statistics;
+        }
+    }
+
+    // The index rather than the job, so that the store does not keep the job.
+    private final SeriesIndex index;
+    private final java.io.File file;
+
+    // The entries by test object id and name, least recently looked at first.
+    private java.util.LinkedHashMap<String, Entry> entries = null;
+    // Whether entries were gathered since the file was written.
+    private boolean dirty = false;
+    // Counts the builds added and clears, so that statistics gathered from
+    // the index meanwhile are not kept.
+    private int generation = 0;
+
+    private StatisticsStore(java.io.File rootDir, SeriesIndex index) {
+        this.index = index;
+        this.file = new java.io.File(new java.io.File(rootDir, SeriesIndex.DIRECTORY_NAME), FILE_NAME);
+    }
+
+    private static String keyOf(String testObjectId, String name) {
+        return testObjectId + '\0' + name;
+    }
+
+    /**
+     * @return A copy of the statistics of a measurement in the builds the
+     * SeriesIndex covers, or null if it covers none.
+     */
+    Entry get(String testObjectId, String name) {
+        String key = keyOf(testObjectId, name);
+        int gathering;
+        synchronized (this) {
+            Entry entry = getEntries().get(key);
+            if (entry != null) {
+                return copyOf(entry);
+            }
+            gathering = generation;
+        }
+        Entry entry = gather(testObjectId, name);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (this) {
+            java.util.LinkedHashMap<String, Entry> loaded = getEntries();
+            if (gathering == generation && !loaded.containsKey(key)) {
+                loaded.put(key, entry);
+                if (loaded.size() > MAX_SERIES) {
+                    java.util.Iterator<String> eldest = loaded.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+                dirty = true;
+            }
+            return copyOf(entry);
+        }
+    }
+
+    private static Entry copyOf(Entry entry) {
+        MeasurementStatistics copy = new MeasurementStatistics();
+        copy.merge(entry.statistics);
+        return new Entry(entry.testObjectId, entry.name, entry.firstBuild, entry.lastBuild, copy);
+    }
+
+    /**
+     * Gathers the statistics of a measurement from the SeriesIndex.
+     * @return The statistics, or null if the index covers no builds.
+     */
+    private Entry gather(String testObjectId, String name) {
+        int since = index.getIndexedSince();
+        if (since == Integer.MAX_VALUE) {
+            return null;
+        }
+        MeasurementStatistics statistics = new MeasurementStatistics();
+        int lastBuild = since - 1;
+        try {
+            for (java.util.Map.Entry<Integer, Measurement> value : index.read(testObjectId, name).entrySet()) {
+                if (value.getValue().isNumeric()) {
+                    statistics.add(value.getValue().getNumber());
+                }
+                lastBuild = Math.max(lastBuild, value.getKey());
+            }
+        } catch (java.io.IOException exception) {
+            LOGGER.log(java.util.logging.Level.WARNING, "Failed to read the history of " + testObjectId
+                    + " : " + name, exception);
+            return null;
+        }
+        return new Entry(testObjectId, name, since, lastBuild, statistics);
+    }
+
+    /**
+     * Adds the values of a build to the statistics kept.
+     */
+    synchronized void update(int buildNumber, BuildMeasurements buildMeasurements) {
+        java.util.LinkedHashMap<String, Entry> loaded = getEntries();
+        ++generation;
+        boolean changed = dirty;
+        for (Entry entry : loaded.values()) {
+            if (buildNumber <= entry.lastBuild) {
+                continue;
+            }
+            entry.lastBuild = buildNumber;
+            changed = true;
+            TestObjectMeasurements testObjectMeasurements =
+                    buildMeasurements.get(TestObjectId.fromString(entry.testObjectId));
+            if (testObjectMeasurements == null) {
+                continue;
+            }
+            for (Measurement measurement : testObjectMeasurements) {
+                if (measurement.getName().equals(entry.name)) {
+                    if (measurement.isNumeric()) {
+                        entry.statistics.add(measurement.getNumber());
+                    }
+                    break;
+                }
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * Forgets the statistics, which are gathered again from a rebuilt index.
+     */
+    synchronized void clear() {
+        entries = new java.util.LinkedHashMap<String, Entry>(16, 0.75f, true);
+        dirty = false;
+        ++generation;
+        file.delete();
+    }
+
+    private java.util.LinkedHashMap<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new java.util.LinkedHashMap<String, Entry>(16, 0.75f, true);
+            if (file.exists()) {
+                try {
+                    load();
+                } catch (java.io.IOException exception) {
+                    LOGGER.log(java.util.logging.Level.WARNING, "Failed to read " + file, exception);
+                    entries.clear();
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void load() throws java.io.IOException {
+        java.io.DataInputStream in = new java.io.DataInputStream(
+                new java.io.BufferedInputStream(new java.io.FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = MeasurementStore.readVarInt(in);
+            for (int index = 0; index < count; ++index) {
+                String testObjectId = MeasurementStore.readString(in);
+                String name = MeasurementStore.readString(in);
+                int firstBuild = MeasurementStore.readVarInt(in);
+                int lastBuild = MeasurementStore.readVarInt(in);
+                MeasurementStatistics statistics = MeasurementStatistics.read(in);
+                entries.put(keyOf(testObjectId, name), new Entry(testObjectId, name, firstBuild, lastBuild, statistics));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save() {
+        java.io.File directory = file.getParentFile();
+        java.io.File temporaryFile = new java.io.File(directory, FILE_NAME + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new java.io.IOException("Failed to create " + directory);
+            }
+            java.io.DataOutputStream out = new java.io.DataOutputStream(
+                    new java.io.BufferedOutputStream(new java.io.FileOutputStream(temporaryFile)));
+            try {
+                out.writeInt(VERSION);
+                MeasurementStore.writeVarInt(out, entries.size());
+                for (Entry entry : entries.values()) {
+                    MeasurementStore.writeString(out, entry.testObjectId);
+                    MeasurementStore.writeString(out, entry.name);
+                    MeasurementStore.writeVarInt(out, entry.firstBuild);
+                    MeasurementStore.writeVarInt(out, entry.lastBuild);
+                    entry.statistics.write(out);
+                }
+            } finally {
+                out.close();
+            }
+            // Windows will not rename over an existing file.
+            if (!temporaryFile.renameTo(file)) {
+                file.delete();
+                if (!temporaryFile.renameTo(file)) {
+                    throw new java.io.IOException("Failed to rename " + temporaryFile + " to " + file);
+                }
+            }
+            dirty = false;
+        } catch (java.io.IOException exception) {
+            // The statistics are gathered again when next looked at.
+            LOGGER.log(java.util.logging.Level.WARNING, "Failed to write " + file, exception);
+            temporaryFile.delete();
+            file.delete();
+        }
+    }
+}
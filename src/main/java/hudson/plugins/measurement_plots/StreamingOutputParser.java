@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.measurement_plots;
+
+/**
+ * Parses output for measurements as it arrives in chunks, without ever
+ * holding the whole output.
+ *
+ * A measurement never spans a line, so only the current line is kept, and
+ * only from the first <tt>&lt;measurement&gt;</tt> on it. A line that grows
+ * past {@link #MAX_BUFFERED} is parsed for the measurements completed so far
+ * and cut, which drops only measurements longer than half the limit.
+ * @author krwalker
+ */
+class StreamingOutputParser {
+
+    /** The most characters kept for a single line. */
+    static final int MAX_BUFFERED = 1 << 20;
+
+    // Enough of a line to hold a partial open tag.
+    private static final int OPEN_TAIL = OutputParser.MEASUREMENT_OPEN.length() - 1;
+
+    private final OutputParser parser;
+    private final TestObjectMeasurements measurements = new TestObjectMeasurements();
+    private final StringBuilder line = new StringBuilder();
+    // Whether the line starts with an open tag, as opposed to only a tail
+    // that might still become one.
+    private boolean open = false;
+
+    StreamingOutputParser(OutputParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Parses the next chunk of output.
+     */
+    void append(char[] chunk, int offset, int length) {
+        int segmentStart = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; ++i) {
+            if (isLineTerminator(chunk[i])) {
+                appendToLine(chunk, segmentStart, i - segmentStart);
+                endLine();
+                segmentStart = i + 1;
+            }
+        }
+        appendToLine(chunk, segmentStart, end - segmentStart);
+    }
+
+    /**
+     * Parses what remains of the output.
+     * @return The measurements found in the whole output.
+     */
+    TestObjectMeasurements finish() {
+        endLine();
+        measurements.finishParsing();
+        return measurements;
+    }
+
+    private void appendToLine(char[] chunk, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        int searchFrom = Math.max(0, line.length() - OPEN_TAIL);
+        line.append(chunk, offset, length);
+        if (!open) {
+            int start = line.indexOf(OutputParser.MEASUREMENT_OPEN, searchFrom);
+            if (start >= 0) {
+                line.delete(0, start);
+                open = true;
+            } else {
+                if (line.length() > OPEN_TAIL) {
+                    line.delete(0, line.length() - OPEN_TAIL);
+                }
+                return;
+            }
+        }
+        if (line.length() > MAX_BUFFERED) {
+            cut();
+        }
+    }
+
+    /**
+     * Parses the measurements completed so far and keeps only what could
+     * still start another one.
+     */
+    private void cut() {
+        String text = line.toString();
+        int end = parser.parse(text, measurements);
+        // Give up on open tags that are already too far back.
+        int keepFrom = Math.max(Math.max(end, 1), text.length() - MAX_BUFFERED / 2);
+        int next = text.indexOf(OutputParser.MEASUREMENT_OPEN, keepFrom);
+        if (next >= 0) {
+            line.delete(0, next);
+        } else {
+            line.delete(0, line.length() - OPEN_TAIL);
+            open = false;
+        }
+    }
+
+    private void endLine() {
+        if (open) {
+            parser.parse(line.toString(), measurements);
+        }
+        line.setLength(0);
+        open = false;
+    }
+
+    /**
+     * @return Whether '.' in a regular expression does not match the character.
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
@@ -36,10 +36,12 @@ public class TestAction extends hudson.tasks.junit.TestAction {
             hudson.tasks.test.TestObject testObject,
             TestObjectMeasurements measurements) {
         this.testObject = testObject;
-        this.measurements = measurements;
+        // The measurements may be shared through the MeasurementCache, so
+        // the action gets its own copies to point back at it. Otherwise the
+        // cache would keep this test object, and its whole test result.
+        this.measurements = measurements.copy();
         // Give the measurements knowledge of their testActions.
-        // FIXME: Why do they need it?
-        for(Measurement measurement : measurements) {
+        for(Measurement measurement : this.measurements) {
             measurement.setTestAction(this);
         }
     }
@@ -96,6 +98,38 @@ public class TestAction extends hudson.tasks.junit.TestAction {
         return measurements;
     }
 
+    /**
+     * @return The history of every measurement of the test object, from
+     * one pass over the builds.
+     */
+    public TestHistory getTestHistory() {
+        return new TestHistory(this, TestHistory.DEFAULT_LAST);
+    }
+
+    /**
+     * @param build The build in which to find the test object.
+     * @return The measurement action of the test object in the build or
+     * null if it has no measurements there.
+     */
+    TestAction getTestActionInBuild(hudson.model.AbstractBuild<?, ?> build) {
+        hudson.tasks.test.TestObject otherTestObject = getTestObject().getResultInBuild(build);
+        if (otherTestObject != null) {
+            hudson.tasks.test.AbstractTestResultAction otherAbstractTestResultAction =
+                    otherTestObject.getTestResultAction();
+            if (otherAbstractTestResultAction != null) {
+                hudson.tasks.junit.TestResultAction otherJunitTestResultAction =
+                        (hudson.tasks.junit.TestResultAction)otherAbstractTestResultAction;
+                for (hudson.tasks.junit.TestAction otherJunitTestAction :
+                        otherJunitTestResultAction.getActions(otherTestObject)) {
+                    if (otherJunitTestAction instanceof TestAction) {
+                        return (TestAction)otherJunitTestAction;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
     public hudson.tasks.test.TestObject getTestObject() {
         return testObject;
     }
@@ -111,11 +145,18 @@ public class TestAction extends hudson.tasks.junit.TestAction {
         StringBuffer buffer = new StringBuffer();
         buffer.append(hudson.model.Hudson.getInstance().getRootUrl());
         buffer.append(getBuild().getUrl());
-        buffer.append(getTestObject().getTestResultAction().getUrlName());
-        buffer.append(getTestObject().getUrl());
+        buffer.append(getTestObjectPath());
         return buffer;
     }
 
+    /**
+     * Returns the URL to the TestObject relative to the build, which is
+     * the same in every build.
+     */
+    String getTestObjectPath() {
+        return getTestObject().getTestResultAction().getUrlName() + getTestObject().getUrl();
+    }
+
     /**
      * Returns the absolute URL to this object.
      */
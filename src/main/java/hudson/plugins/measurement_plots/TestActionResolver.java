@@ -35,64 +35,8 @@ class TestActionResolver extends hudson.tasks.junit.TestResultAction.Data {
     private static final java.util.logging.Logger LOGGER =
         java.util.logging.Logger.getLogger(TestActionResolver.class.getName());
 
-    private static final com.thoughtworks.xstream.XStream XSTREAM = new hudson.util.XStream2();
-
-    // Convert BuildMeasurements to XML in a more friendly way.
-    private static class BuildMeasurementsConverter extends
-            com.thoughtworks.xstream.converters.collections.MapConverter {
-        BuildMeasurementsConverter(com.thoughtworks.xstream.mapper.Mapper mapper) {
-            super(mapper);
-        }
-
-        @Override
-        public boolean canConvert(Class type) {
-            return type.equals(BuildMeasurements.class);
-        }
-    }
-    // Convert TestObjectMeasurements to XML in a more friendly way.
-    private static class TestObjectMeasurementsConverter extends
-            com.thoughtworks.xstream.converters.collections.CollectionConverter {
-        TestObjectMeasurementsConverter(com.thoughtworks.xstream.mapper.Mapper mapper) {
-            super(mapper);
-        }
-
-        @Override
-        public boolean canConvert(Class type) {
-            return type.equals(TestObjectMeasurements.class);
-        }
-    }
-
-    // Convert TestObjectIds to XML in a more friendly way.
-    private static class TestObjectIdConverter extends
-            com.thoughtworks.xstream.converters.basic.AbstractSingleValueConverter {
-
-        @Override
-        public boolean canConvert(Class type) {
-            return type.equals(TestObjectId.class);
-        }
-
-        @Override
-        public Object fromString(String string) {
-            return TestObjectId.fromString(string);
-        }
-
-    }
-    static {
-        XSTREAM.registerConverter(new BuildMeasurementsConverter(XSTREAM.getMapper()));
-        XSTREAM.alias("build-measurements", BuildMeasurements.class);
-        XSTREAM.alias("test-object", java.util.Map.Entry.class);
-        XSTREAM.registerConverter(new TestObjectIdConverter());
-        XSTREAM.alias("id", TestObjectId.class);
-        XSTREAM.registerConverter(new TestObjectMeasurementsConverter(XSTREAM.getMapper()));
-        XSTREAM.alias("measurements", TestObjectMeasurements.class);
-        XSTREAM.alias("measurement", Measurement.class);
-        // Is this needed?
-        XSTREAM.registerConverter(new hudson.util.HeapSpaceStringConverter(),100);
-    }
-
-    // Store a weak reference to the build measurements. They are stored in
-    // their own file (measurement-plots.xml) and loaded on demand.
-    private transient java.lang.ref.WeakReference<BuildMeasurements> weakBuildMeasurements;
+    // The build measurements are stored in their own file (see
+    // MeasurementStore), loaded on demand and kept in MeasurementCache.
 
     // The build used during both the load and save, and may be set by
     // the constructor or getTestAction().
@@ -101,6 +45,9 @@ class TestActionResolver extends hudson.tasks.junit.TestResultAction.Data {
     // The listener is used only during the save. It is set during the constructor.
     private transient final hudson.model.BuildListener listener;
 
+    // Kept so that the store can hold on to what it has read of the file.
+    private transient MeasurementStore store;
+
     TestActionResolver(final BuildMeasurements buildMeasurements, 
         hudson.model.AbstractBuild<?, ?> build, hudson.model.BuildListener listener) {
         this.build = build;
@@ -115,7 +62,7 @@ class TestActionResolver extends hudson.tasks.junit.TestResultAction.Data {
             build = junitTestObject.getOwner();
         }
         TestObjectMeasurements testObjectMeasurements =
-                getBuildMeasurements().get(TestObjectId.fromString(junitTestObject.getId()));
+                getTestObjectMeasurements(TestObjectId.fromString(junitTestObject.getId()));
         if (testObjectMeasurements != null && !testObjectMeasurements.isEmpty()) {
             // This cast should always succeed.
             hudson.tasks.test.TestObject testObject =
@@ -126,22 +73,49 @@ class TestActionResolver extends hudson.tasks.junit.TestResultAction.Data {
         return java.util.Collections.emptyList();
     }
 
-    public synchronized BuildMeasurements getBuildMeasurements() {
-        BuildMeasurements buildMeasurements;
-        if(weakBuildMeasurements == null) {
-            buildMeasurements = load();
-            weakBuildMeasurements = new java.lang.ref.WeakReference<BuildMeasurements>(buildMeasurements);
-        } else {
-            buildMeasurements = weakBuildMeasurements.get();
+    /**
+     * Gets the measurements of one test object. Unless the whole build's
+     * measurements are already loaded, only that test object's
+     * measurements are read.
+     */
+    synchronized TestObjectMeasurements getTestObjectMeasurements(TestObjectId id) {
+        BuildMeasurements buildMeasurements = MeasurementCache.get().getIfPresent(getCacheKey());
+        if (buildMeasurements != null) {
+            return buildMeasurements.get(id);
+        }
+        try {
+            return getStore().read(id);
+        } catch (java.io.IOException exception) {
+            LOGGER.log(java.util.logging.Level.WARNING, "Failed to load measurements of " + build, exception);
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether the build has any measurements, without loading them.
+     */
+    synchronized boolean hasMeasurements() {
+        BuildMeasurements buildMeasurements = MeasurementCache.get().getIfPresent(getCacheKey());
+        if (buildMeasurements != null) {
+            return !buildMeasurements.isEmpty();
         }
+        return getStore().hasMeasurements();
+    }
 
-        if(buildMeasurements == null) {
+    public synchronized BuildMeasurements getBuildMeasurements() {
+        MeasurementCache cache = MeasurementCache.get();
+        BuildMeasurements buildMeasurements = cache.get(getCacheKey());
+        if (buildMeasurements == null) {
             buildMeasurements = load();
-            weakBuildMeasurements = new java.lang.ref.WeakReference<BuildMeasurements>(buildMeasurements);
+            cache.put(getCacheKey(), buildMeasurements);
         }
         return buildMeasurements;
     }
 
+    private String getCacheKey() {
+        return MeasurementCache.keyOf(build);
+    }
+
     /**
      * Overwrites the {@link BuildMeasurements} by a new data set.
      */
@@ -149,16 +123,19 @@ class TestActionResolver extends hudson.tasks.junit.TestResultAction.Data {
 
         // persist the data
         try {
-            getDataFile().write(buildMeasurements);
+            getStore().write(buildMeasurements);
         } catch (java.io.IOException exception) {
             exception.printStackTrace(listener.fatalError("Failed to save build measurements"));
         }
 
-        this.weakBuildMeasurements = new java.lang.ref.WeakReference<BuildMeasurements>(buildMeasurements);
+        MeasurementCache.get().put(getCacheKey(), buildMeasurements);
     }
 
-    private hudson.XmlFile getDataFile() {
-        return new hudson.XmlFile(XSTREAM, new java.io.File(build.getRootDir(), "measurement-plots.xml"));
+    private MeasurementStore getStore() {
+        if (store == null) {
+            store = new MeasurementStore(build.getRootDir());
+        }
+        return store;
     }
 
     /**
@@ -167,9 +144,9 @@ class TestActionResolver extends hudson.tasks.junit.TestResultAction.Data {
     private BuildMeasurements load() {
         BuildMeasurements loadedMeasurements;
         try {
-            loadedMeasurements = (BuildMeasurements)getDataFile().read();
+            loadedMeasurements = getStore().read();
         } catch (java.io.IOException exception) {
-            LOGGER.log(java.util.logging.Level.WARNING, "Failed to load " + getDataFile(), exception);
+            LOGGER.log(java.util.logging.Level.WARNING, "Failed to load measurements of " + build, exception);
             loadedMeasurements = new BuildMeasurements();   // return a dummy
         }
         return loadedMeasurements;
@@ -29,8 +29,101 @@ package hudson.plugins.measurement_plots;
  */
 public class TestDataPublisher extends hudson.tasks.junit.TestDataPublisher {
 
-    @org.kohsuke.stapler.DataBoundConstructor
+    /** The build the measurement changes shown on a build's page are against. */
+    public enum SummaryBaseline {
+        /** The latest earlier build with measurements. */
+        PREVIOUS,
+        /** The last successful build. */
+        LAST_SUCCESSFUL,
+        /** A build chosen by number. */
+        BUILD
+    }
+
+    /** The quality gate rules of the job, null in configurations saved without any. */
+    private final java.util.List<GateRule> rules;
+
+    // Null and zero in configurations saved without a summary.
+    private final SummaryBaseline summaryBaseline;
+    private final int summaryBuild;
+    private final int summaryCount;
+
     public TestDataPublisher() {
+        this(null);
+    }
+
+    public TestDataPublisher(java.util.List<GateRule> rules) {
+        this(rules, null, 0, BuildAction.DEFAULT_COUNT);
+    }
+
+    @org.kohsuke.stapler.DataBoundConstructor
+    public TestDataPublisher(java.util.List<GateRule> rules, String summaryBaseline, int summaryBuild,
+            int summaryCount) {
+        this.rules = rules != null && !rules.isEmpty() ? new java.util.ArrayList<GateRule>(rules) : null;
+        SummaryBaseline baseline = SummaryBaseline.PREVIOUS;
+        try {
+            if (summaryBaseline != null) {
+                baseline = SummaryBaseline.valueOf(summaryBaseline);
+            }
+        } catch (IllegalArgumentException exception) {
+            // Keep the default.
+        }
+        this.summaryBaseline = baseline;
+        this.summaryBuild = summaryBuild;
+        this.summaryCount = summaryCount;
+    }
+
+    /**
+     * @return The quality gate rules of the job.
+     */
+    public java.util.List<GateRule> getRules() {
+        if (rules == null) {
+            return java.util.Collections.emptyList();
+        }
+        return java.util.Collections.unmodifiableList(rules);
+    }
+
+    public SummaryBaseline getSummaryBaseline() {
+        return summaryBaseline != null ? summaryBaseline : SummaryBaseline.PREVIOUS;
+    }
+
+    /**
+     * @return The number of the baseline build chosen by number.
+     */
+    public int getSummaryBuild() {
+        return summaryBuild;
+    }
+
+    /**
+     * @return The number of measurement changes shown on a build's page,
+     * or zero for none.
+     */
+    public int getSummaryCount() {
+        return summaryBaseline != null ? Math.max(0, summaryCount) : BuildAction.DEFAULT_COUNT;
+    }
+
+    /**
+     * @return The build the measurement changes of a build are against, or
+     * null if there is none.
+     */
+    private hudson.model.AbstractBuild<?, ?> findSummaryBaseline(hudson.model.AbstractBuild<?, ?> build) {
+        switch (getSummaryBaseline()) {
+        case LAST_SUCCESSFUL:
+            return build.getPreviousSuccessfulBuild();
+        case BUILD:
+            return summaryBuild != build.getNumber() ? build.getParent().getBuildByNumber(summaryBuild) : null;
+        default:
+            // Only so far back, so a job whose older builds have no
+            // measurements is not searched whole on every publish.
+            int searched = 0;
+            for (hudson.model.AbstractBuild<?, ?> earlier = build.getPreviousBuild();
+                    earlier != null && searched < BuildAction.MAX_BASELINE_SEARCH;
+                    earlier = earlier.getPreviousBuild(), ++searched) {
+                if (!earlier.isBuilding() && new MeasurementStore(earlier.getRootDir()).hasMeasurements()) {
+                    return earlier;
+                }
+            }
+            return null;
+        }
     }
 
     /**
@@ -44,30 +137,251 @@ public class TestDataPublisher extends hudson.tasks.junit.TestDataPublisher {
             hudson.tasks.junit.TestResult testResult) throws
             java.io.IOException, InterruptedException {
 
+        BuildMeasurements buildMeasurements = null;
+        if (getDescriptor().isScanOnAgent()) {
+            buildMeasurements = collectOnAgent(build, listener, testResult);
+        }
+        if (buildMeasurements == null) {
+            int parallelism = getDescriptor().getParallelism();
+            if (parallelism > 1) {
+                buildMeasurements = collectInParallel(testResult, parallelism);
+            } else {
+                buildMeasurements = collect(testResult);
+            }
+        }
+
+        TestActionResolver resolver = null;
+        if (!buildMeasurements.isEmpty()) {
+            resolver = new TestActionResolver(buildMeasurements, build, listener);
+            try {
+                SeriesIndex.of(build.getParent()).append(build.getNumber(), buildMeasurements);
+            } catch (java.io.IOException exception) {
+                exception.printStackTrace(listener.error("Measurement Plots: failed to add the measurements "
+                        + "to the job's index; rebuild the index to include this build"));
+            }
+            StatisticsStore.of(build.getParent()).update(build.getNumber(), buildMeasurements);
+            try {
+                for (ChangePoint changePoint : ChangePointDetector.of(build.getParent()).update(
+                        build.getNumber(), buildMeasurements)) {
+                    listener.getLogger().println("Measurement Plots: " + changePoint);
+                }
+            } catch (java.io.IOException exception) {
+                exception.printStackTrace(listener.error("Measurement Plots: failed to look for changes "
+                        + "in the measurements"));
+            }
+            if (!getRules().isEmpty()) {
+                try {
+                    new QualityGate(getRules(), build).check(buildMeasurements, listener.getLogger());
+                } catch (java.io.IOException exception) {
+                    exception.printStackTrace(listener.error("Measurement Plots: failed to read the baselines "
+                            + "of the quality gate"));
+                }
+            }
+            hudson.model.AbstractBuild<?, ?> baseline = getSummaryCount() > 0 ? findSummaryBaseline(build) : null;
+            if (baseline != null) {
+                try {
+                    build.addAction(BuildAction.compare(build, buildMeasurements, baseline, getSummaryCount()));
+                } catch (java.io.IOException exception) {
+                    exception.printStackTrace(listener.error("Measurement Plots: failed to compare the "
+                            + "measurements with " + baseline.getDisplayName()));
+                }
+            }
+        }
+        return resolver;
+    }
+
+    /**
+     * Walks the test result and parses each output on the calling thread.
+     */
+    private static BuildMeasurements collect(hudson.tasks.junit.TestResult testResult) {
         final BuildMeasurements buildMeasurements = new BuildMeasurements();
 
         final OutputParser parser = new OutputParser();
         TestResultWalker walker = new TestResultWalker(testResult);
-        walker.apply(new OutputOperationApplicator(new TestResultOutputOperation() {
+        walker.apply(new TestResultOutputOperation() {
             @Override
-            public void apply(hudson.tasks.test.TestResult result, String text) {
+            public void apply(java.util.List<hudson.tasks.test.TestResult> results, String text) {
                 TestObjectMeasurements testObjectMeasurements = parser.parse(text);
                 if (!testObjectMeasurements.isEmpty()) {
-                    buildMeasurements.put(TestObjectId.fromString(result.getId()), testObjectMeasurements);
+                    buildMeasurements.put(BuildMeasurements.idsOf(results), testObjectMeasurements);
                 }
             }
-        }));
+        });
+        return buildMeasurements;
+    }
 
-        TestActionResolver resolver = null;
-        if (!buildMeasurements.isEmpty()) {
-            resolver = new TestActionResolver(buildMeasurements, build, listener);
+    /**
+     * Walks the test result on the calling thread and parses the outputs
+     * on a pool of threads. The result is the same as {@link #collect}.
+     */
+    private static BuildMeasurements collectInParallel(
+            hudson.tasks.junit.TestResult testResult, int parallelism) throws InterruptedException {
+        ParallelOutputCollector collector = new ParallelOutputCollector(parallelism);
+        try {
+            new TestResultWalker(testResult).apply(collector);
+        } catch (RuntimeException exception) {
+            collector.abort();
+            throw exception;
         }
-        return resolver;
+        return collector.finish();
+    }
+
+    /**
+     * Scans the junit report files in the workspace, where they are, and
+     * only matches the returned measurements up with the test result here.
+     * @return The measurements or null if the reports could not be scanned
+     * and the test result should be searched instead.
+     */
+    private static BuildMeasurements collectOnAgent(
+            hudson.model.AbstractBuild<?, ?> build,
+            hudson.model.BuildListener listener,
+            hudson.tasks.junit.TestResult testResult) throws InterruptedException {
+        hudson.FilePath workspace = build.getWorkspace();
+        hudson.tasks.junit.JUnitResultArchiver archiver =
+                build.getProject().getPublishersList().get(hudson.tasks.junit.JUnitResultArchiver.class);
+        if (workspace == null || archiver == null) {
+            listener.getLogger().println("Measurement Plots: no junit reports to scan on the agent, "
+                    + "searching the test result instead");
+            return null;
+        }
+        try {
+            String includes = build.getEnvironment(listener).expand(archiver.getTestResults());
+            ReportMeasurements reportMeasurements =
+                    workspace.act(new ReportScanner(includes, build.getTimestamp().getTimeInMillis()));
+            return reportMeasurements.resolve(testResult);
+        } catch (java.io.IOException exception) {
+            exception.printStackTrace(listener.error("Measurement Plots: failed to scan junit reports on the agent, "
+                    + "searching the test result instead"));
+            return null;
+        } catch (RuntimeException exception) {
+            // A report the scanner did not expect must not fail the publisher.
+            exception.printStackTrace(listener.error("Measurement Plots: failed to scan junit reports on the agent, "
+                    + "searching the test result instead"));
+            return null;
+        }
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl)super.getDescriptor();
     }
 
     @hudson.Extension
     public static class DescriptorImpl extends hudson.model.Descriptor<hudson.tasks.junit.TestDataPublisher> {
 
+        /**
+         * The number of outputs parsed at the same time. One parses
+         * everything on the thread publishing the test results.
+         */
+        private int parallelism = 1;
+
+        /**
+         * Whether report files are scanned where they are, instead of
+         * searching the test result on the controller.
+         */
+        private boolean scanOnAgent = false;
+
+        /** Whether stored measurements are compressed. */
+        private boolean compressStore = false;
+
+        /** How much heap loaded measurements may keep, in megabytes. */
+        private int cacheMegabytes = MeasurementCache.DEFAULT_MEGABYTES;
+
+        /** How many graphs may be rendered at the same time. */
+        private int renderThreads = RenderScheduler.DEFAULT_THREADS;
+
+        /** How long a request waits for its graph before getting a placeholder. */
+        private int renderTimeoutSeconds = RenderScheduler.DEFAULT_TIMEOUT_SECONDS;
+
+        public DescriptorImpl() {
+            load();
+        }
+
+        /**
+         * @return The descriptor or null if Hudson is not running, as on a
+         * build agent.
+         */
+        static DescriptorImpl get() {
+            hudson.model.Hudson instance = hudson.model.Hudson.getInstance();
+            if (instance == null) {
+                return null;
+            }
+            return instance.getDescriptorByType(DescriptorImpl.class);
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public void setParallelism(int parallelism) {
+            this.parallelism = Math.max(1, parallelism);
+        }
+
+        public boolean isScanOnAgent() {
+            return scanOnAgent;
+        }
+
+        public void setScanOnAgent(boolean scanOnAgent) {
+            this.scanOnAgent = scanOnAgent;
+        }
+
+        public boolean isCompressStore() {
+            return compressStore;
+        }
+
+        public void setCompressStore(boolean compressStore) {
+            this.compressStore = compressStore;
+        }
+
+        public int getCacheMegabytes() {
+            return cacheMegabytes;
+        }
+
+        public void setCacheMegabytes(int cacheMegabytes) {
+            this.cacheMegabytes = Math.max(0, cacheMegabytes);
+        }
+
+        public int getRenderThreads() {
+            return renderThreads;
+        }
+
+        public void setRenderThreads(int renderThreads) {
+            this.renderThreads = Math.max(1, renderThreads);
+        }
+
+        public int getRenderTimeoutSeconds() {
+            return renderTimeoutSeconds;
+        }
+
+        public void setRenderTimeoutSeconds(int renderTimeoutSeconds) {
+            this.renderTimeoutSeconds = Math.max(1, renderTimeoutSeconds);
+        }
+
+        /**
+         * @return The graph render scheduler, for its statistics.
+         */
+        public RenderScheduler getRenderScheduler() {
+            return RenderScheduler.get();
+        }
+
+        /**
+         * @return The cache of loaded measurements, for its statistics.
+         */
+        public MeasurementCache getCache() {
+            return MeasurementCache.get();
+        }
+
+        @Override
+        public TestDataPublisher newInstance(org.kohsuke.stapler.StaplerRequest request, net.sf.json.JSONObject json)
+                throws FormException {
+            Object rules = json.opt("rules");
+            return new TestDataPublisher(
+                    rules != null ? request.bindJSONToList(GateRule.class, rules) : null,
+                    json.optString("summaryBaseline", null),
+                    json.optInt("summaryBuild", 0),
+                    json.optInt("summaryCount", BuildAction.DEFAULT_COUNT));
+        }
+
         /**
          * This human readable name is used in the configuration screen.
          */
@@ -75,5 +389,49 @@ public class TestDataPublisher extends hudson.tasks.junit.TestDataPublisher {
         public String getDisplayName() {
             return "Measurement Plots";
         }
+
+        @Override
+        public boolean configure(org.kohsuke.stapler.StaplerRequest request, net.sf.json.JSONObject json)
+                throws FormException {
+            setParallelism(json.optInt("parallelism", 1));
+            setScanOnAgent(json.optBoolean("scanOnAgent"));
+            setCompressStore(json.optBoolean("compressStore"));
+            setCacheMegabytes(json.optInt("cacheMegabytes", MeasurementCache.DEFAULT_MEGABYTES));
+            setRenderThreads(json.optInt("renderThreads", RenderScheduler.DEFAULT_THREADS));
+            setRenderTimeoutSeconds(json.optInt("renderTimeoutSeconds", RenderScheduler.DEFAULT_TIMEOUT_SECONDS));
+            RenderScheduler.get().setThreads(getRenderThreads());
+            save();
+            return true;
+        }
+
+        public hudson.util.FormValidation doCheckParallelism(@org.kohsuke.stapler.QueryParameter String value) {
+            try {
+                if (Integer.parseInt(value) >= 1) {
+                    return hudson.util.FormValidation.ok();
+                }
+            } catch (NumberFormatException exception) {
+                // Fall through.
+            }
+            return hudson.util.FormValidation.error("Must be a whole number of at least 1");
+        }
+
+        public hudson.util.FormValidation doCheckCacheMegabytes(@org.kohsuke.stapler.QueryParameter String value) {
+            try {
+                if (Integer.parseInt(value) >= 0) {
+                    return hudson.util.FormValidation.ok();
+                }
+            } catch (NumberFormatException exception) {
+                // Fall through.
+            }
+            return hudson.util.FormValidation.error("Must be a whole number of at least 0");
+        }
+
+        public hudson.util.FormValidation doCheckRenderThreads(@org.kohsuke.stapler.QueryParameter String value) {
+            return doCheckParallelism(value);
+        }
+
+        public hudson.util.FormValidation doCheckRenderTimeoutSeconds(@org.kohsuke.stapler.QueryParameter String value) {
+            return doCheckParallelism(value);
+        }
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * The history of every measurement of a test object, collected in one pass
+ * over the builds rather than one {@link History} per measurement.
+ * @author krwalker
+ */
+public class TestHistory {
+
+    private static final java.util.logging.Logger LOGGER =
+            java.util.logging.Logger.getLogger(TestHistory.class.getName());
+
+    /** The number of builds with measurements of the test object shown by default. */
+    static final int DEFAULT_LAST = 50;
+
+    static final int SPARKLINE_WIDTH = 100;
+    static final int SPARKLINE_HEIGHT = 20;
+
+    transient private final TestAction testAction;
+    transient private final int last;
+    // Each measurement's history, newest first.
+    transient private java.util.Map<String, java.util.List<Measurement>> measurements;
+
+    /**
+     * @param last How many builds that measured the test object to
+     * collect, newest first.
+     */
+    TestHistory(TestAction testAction, int last) {
+        this.testAction = testAction;
+        this.last = last;
+    }
+
+    public TestAction getTestAction() {
+        return testAction;
+    }
+
+    /**
+     * Reads the builds the job's SeriesIndex covers from the index, all
+     * names at once, and loads each older build's test result once for all
+     * names. Only detached copies of the measurements are kept, so no test
+     * result stays in memory.
+     */
+    private void collectMeasurements() {
+        measurements = new java.util.HashMap<String, java.util.List<Measurement>>();
+        java.util.Set<String> names = new java.util.HashSet<String>();
+        for (Measurement measurement : testAction.getMeasurements()) {
+            names.add(measurement.getName());
+            measurements.put(measurement.getName(), new java.util.ArrayList<Measurement>());
+        }
+        hudson.model.AbstractProject<?, ?> project = testAction.getBuild().getParent();
+        SeriesIndex index = SeriesIndex.of(project);
+        int indexedSince = index.getIndexedSince();
+        java.util.Map<String, java.util.SortedMap<Integer, Measurement>> series = java.util.Collections.emptyMap();
+        if (indexedSince != Integer.MAX_VALUE) {
+            try {
+                series = index.read(testAction.getTestObject().getId(), names);
+            } catch (java.io.IOException exception) {
+                LOGGER.log(java.util.logging.Level.WARNING, "Failed to read the measurement index of "
+                        + project.getFullName(), exception);
+                indexedSince = Integer.MAX_VALUE;
+            }
+        }
+        String testObjectPath = testAction.getTestObjectPath();
+        int found = 0;
+        for (hudson.model.AbstractBuild<?, ?> build : project.getBuilds()) {
+            if (build.isBuilding()) continue;
+            boolean measured = false;
+            if (build.getNumber() >= indexedSince) {
+                for (java.util.Map.Entry<String, java.util.SortedMap<Integer, Measurement>> entry : series.entrySet()) {
+                    Measurement indexed = entry.getValue().get(build.getNumber());
+                    if (indexed != null) {
+                        measurements.get(entry.getKey()).add(new Measurement(indexed, build, testObjectPath));
+                        measured = true;
+                    }
+                }
+            } else {
+                TestAction other = testAction.getTestActionInBuild(build);
+                if (other != null) {
+                    for (String name : names) {
+                        Measurement measurement = other.getMeasurement(name);
+                        if (measurement != null) {
+                            // A copy that belongs to no TestAction, so the
+                            // build's test result is not kept.
+                            measurements.get(name).add(new Measurement(measurement, build, testObjectPath));
+                            measured = true;
+                        }
+                    }
+                }
+            }
+            if (measured && ++found == last) break;
+        }
+    }
+
+    /**
+     * @return The history of the named measurement, newest first, which is
+     * empty if the test object has no such measurement.
+     */
+    public java.util.List<Measurement> getMeasurements(String name) {
+        if (measurements == null) {
+            collectMeasurements();
+        }
+        java.util.List<Measurement> history = measurements.get(name);
+        return history != null ? history : java.util.Collections.<Measurement>emptyList();
+    }
+
+    /**
+     * @return The points of an SVG polyline of the named measurement's
+     * numeric values, oldest on the left, or an empty string if there are
+     * fewer than two.
+     */
+    public String getSparkline(String name) {
+        java.util.List<Measurement> history = getMeasurements(name);
+        double[] values = new double[history.size()];
+        int count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int index = history.size() - 1; index >= 0; --index) {
+            Measurement measurement = history.get(index);
+            if (measurement.isNumeric()) {
+                double value = measurement.getNumber();
+                values[count++] = value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        if (count < 2) {
+            return "";
+        }
+        StringBuilder points = new StringBuilder();
+        for (int index = 0; index < count; ++index) {
+            double x = (double)index * SPARKLINE_WIDTH / (count - 1);
+            // Flat series run through the middle; SVG's y axis points down.
+            double y = max == min
+                    ? SPARKLINE_HEIGHT / 2.0
+                    : 1 + (max - values[index]) / (max - min) * (SPARKLINE_HEIGHT - 2);
+            if (index > 0) {
+                points.append(' ');
+            }
+            points.append(Math.round(x * 10) / 10.0).append(',').append(Math.round(y * 10) / 10.0);
+        }
+        return points.toString();
+    }
+}
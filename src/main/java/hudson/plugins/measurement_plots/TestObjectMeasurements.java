@@ -30,4 +30,52 @@ package hudson.plugins.measurement_plots;
  * @author krwalker
  */
 public class TestObjectMeasurements extends java.util.HashSet<Measurement> {
+
+    // The measurements by name while output is parsed into the set.
+    transient private java.util.Map<String, Measurement> parsing;
+
+    /**
+     * Adds a parsed measurement. If one of the same name was parsed before,
+     * the value is folded into it instead.
+     */
+    void addSample(Measurement measurement) {
+        if (parsing == null) {
+            parsing = new java.util.HashMap<String, Measurement>();
+            for (Measurement existing : this) {
+                parsing.put(existing.getName(), existing);
+            }
+        }
+        Measurement existing = parsing.get(measurement.getName());
+        if (existing == null) {
+            add(measurement);
+            parsing.put(measurement.getName(), measurement);
+        } else {
+            existing.fold(measurement);
+        }
+    }
+
+    /**
+     * Summarizes the values folded once the whole output is parsed.
+     */
+    void finishParsing() {
+        if (parsing == null) {
+            return;
+        }
+        for (Measurement measurement : this) {
+            measurement.summarize();
+        }
+        parsing = null;
+    }
+
+    /**
+     * @return A copy holding copies of the measurements, for use by another
+     * test object.
+     */
+    TestObjectMeasurements copy() {
+        TestObjectMeasurements copy = new TestObjectMeasurements();
+        for (Measurement measurement : this) {
+            copy.add(measurement.copy());
+        }
+        return copy;
+    }
 }
@@ -25,13 +25,15 @@
 package hudson.plugins.measurement_plots;
 
 /**
- * An operation to apply to a text-based output from a TestResult.
+ * An operation to apply to a text-based output from TestResults.
  * @author krwalker
+ * @see TestResultWalker
  */
 interface TestResultOutputOperation {
     /**
-     * @param result The result from which text came.
+     * @param results The results the text belongs to. There is more than
+     * one when cases share the output of their suite.
      * @param text The text on which to apply the operation.
      */
-    void apply(hudson.tasks.test.TestResult result, String text);
+    void apply(java.util.List<hudson.tasks.test.TestResult> results, String text);
 }
@@ -25,60 +25,138 @@
 package hudson.plugins.measurement_plots;
 
 /**
- * Applies a TestResultOperation to all TestResults in the hierarchy rooted at
- * the TestResult passed into the constructor. The order in which the operation
- * is applied to children is unspecified.
+ * Applies a TestResultOutputOperation to the text-based outputs of all
+ * TestResults in the hierarchy rooted at the TestResult passed into the
+ * constructor.
+ *
+ * The hudson.tasks.junit package implements getStdout and getStderr in
+ * ways that make walking the test tree using the general interfaces
+ * difficult. CaseResult returns its own output if it has any, otherwise
+ * it returns the SuiteResult output if it has any. TestResult loops
+ * over all suites and concatenates the output from each SuiteResult.
+ *
+ * The walker therefore decides who owns an output in a single top-down
+ * pass: the output of a junit.TestResult is ignored, an output that is the
+ * very same string as an ancestor's is the ancestor's, and an output a case
+ * inherits is owned by its SuiteResult and shared by every case that
+ * inherits it. Each distinct output is handed to the operation exactly once,
+ * together with all the results it applies to. All standard outputs are
+ * handed over before any standard error, so an operation that records one
+ * set of measurements per result sees standard error last.
  * @author krwalker
- * @see TestResultOperation
  */
 class TestResultWalker {
 
+    /** The results an output applies to, in the order they were visited. */
+    private static class OutputGroup {
+        final String output;
+        final java.util.List<hudson.tasks.test.TestResult> results =
+                new java.util.ArrayList<hudson.tasks.test.TestResult>(1);
+
+        OutputGroup(String output) {
+            this.output = output;
+        }
+    }
+
+    /** Groups outputs by identity, remembering the order they were first seen in. */
+    private static class OutputGroups {
+        private final java.util.Map<String, OutputGroup> byOutput =
+                new java.util.IdentityHashMap<String, OutputGroup>();
+        private final java.util.List<OutputGroup> groups = new java.util.ArrayList<OutputGroup>();
+
+        void add(String output, hudson.tasks.test.TestResult result) {
+            OutputGroup group = byOutput.get(output);
+            if (group == null) {
+                group = new OutputGroup(output);
+                byOutput.put(output, group);
+                groups.add(group);
+            }
+            group.results.add(result);
+        }
+
+        /** Declares an output as owned by a suite before any case is seen. */
+        void own(String output) {
+            if (isPresent(output) && !byOutput.containsKey(output)) {
+                OutputGroup group = new OutputGroup(output);
+                byOutput.put(output, group);
+                groups.add(group);
+            }
+        }
+
+        void apply(TestResultOutputOperation operation) {
+            for (OutputGroup group : groups) {
+                if (!group.results.isEmpty()) {
+                    operation.apply(group.results, group.output);
+                }
+            }
+        }
+    }
+
     final private hudson.tasks.test.TestResult root;
 
     TestResultWalker(hudson.tasks.test.TestResult root) {
         this.root = root;
     }
 
-    void apply(TestResultOperation operation) {
-        java.util.Queue<hudson.tasks.test.TestResult> frontier =
-                new java.util.LinkedList<hudson.tasks.test.TestResult>();
-        frontier.offer(root);
-        while (!frontier.isEmpty()) {
-            // The following is due to the in-flux nature of the 
-            // hudson.tasks.test and junit class hierarchies.
-            // For now, just deal with it, though be aware that
-            // this may fail in the future.
-            hudson.tasks.test.TestResult current = frontier.remove();
-            if (current instanceof hudson.tasks.test.TabulatedResult) {
-                offerToFrontier(frontier, ((hudson.tasks.test.TabulatedResult)current).getChildren());
-            } else {
-                // It is currently unclear what the future holds for
-                // test.TestResult.getChildren().
-//                try {
-//                    offerToFrontier(frontier, current.getPassedTests());
-//                } catch (UnsupportedOperationException exception) {
-//                    // Doesn't support the operation, so ignore.
-//                }
-//                try {
-//                    offerToFrontier(frontier, current.getFailedTests());
-//                } catch (UnsupportedOperationException exception) {
-//                    // Doesn't support the operation, so ignore.
-//                }
-//                try {
-//                    offerToFrontier(frontier, current.getSkippedTests());
-//                } catch (UnsupportedOperationException exception) {
-//                    // Doesn't support the operation, so ignore.
-//                }
+    void apply(TestResultOutputOperation operation) {
+        OutputGroups stdout = new OutputGroups();
+        OutputGroups stderr = new OutputGroups();
+        if (root instanceof hudson.tasks.junit.TestResult) {
+            // Suite outputs are shared by the cases that inherit them.
+            for (hudson.tasks.junit.SuiteResult suite : ((hudson.tasks.junit.TestResult)root).getSuites()) {
+                stdout.own(suite.getStdout());
+                stderr.own(suite.getStderr());
             }
-            operation.apply(current);
         }
+        visit(root, new java.util.ArrayList<String>(), new java.util.ArrayList<String>(), stdout, stderr);
+        stdout.apply(operation);
+        stderr.apply(operation);
     }
 
-    private static void offerToFrontier(
-            java.util.Queue<hudson.tasks.test.TestResult> frontier,
-            java.util.Collection<? extends hudson.tasks.test.TestResult> elements ) {
-        for (hudson.tasks.test.TestResult element : elements ) {
-            frontier.offer(element);
+    private static void visit(
+            hudson.tasks.test.TestResult result,
+            java.util.List<String> ancestorStdout,
+            java.util.List<String> ancestorStderr,
+            OutputGroups stdout,
+            OutputGroups stderr) {
+        // Ignore output from junit.TestResult, it only concatenates the
+        // suites' output and is expensive to build.
+        boolean hasOutput = !(result instanceof hudson.tasks.junit.TestResult);
+        String resultStdout = hasOutput ? result.getStdout() : null;
+        String resultStderr = hasOutput ? result.getStderr() : null;
+        if (isPresent(resultStdout) && !containsIdentical(ancestorStdout, resultStdout)) {
+            stdout.add(resultStdout, result);
+        }
+        if (isPresent(resultStderr) && !containsIdentical(ancestorStderr, resultStderr)) {
+            stderr.add(resultStderr, result);
+        }
+
+        // The following is due to the in-flux nature of the
+        // hudson.tasks.test and junit class hierarchies.
+        // For now, just deal with it, though be aware that
+        // this may fail in the future.
+        if (result instanceof hudson.tasks.test.TabulatedResult) {
+            ancestorStdout.add(resultStdout);
+            ancestorStderr.add(resultStderr);
+            for (hudson.tasks.test.TestResult child :
+                    ((hudson.tasks.test.TabulatedResult)result).getChildren()) {
+                visit(child, ancestorStdout, ancestorStderr, stdout, stderr);
+            }
+            ancestorStdout.remove(ancestorStdout.size() - 1);
+            ancestorStderr.remove(ancestorStderr.size() - 1);
+        }
+    }
+
+    private static boolean isPresent(String output) {
+        return output != null && output.length() > 0;
+    }
+
+    private static boolean containsIdentical(java.util.List<String> outputs, String output) {
+        for (String candidate : outputs) {
+            if (candidate == output) {
+                return true;
+            }
         }
+        return false;
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.measurement_plots;
+
+/**
+ * A unit a measurement can be printed in, either as a suffix of the value
+ * (<tt>12ms</tt>, <tt>1.4 s</tt>) or in a <tt>&lt;unit&gt;</tt> element.
+ * Values of known units are converted to the base unit of their dimension,
+ * seconds or bytes, so that a series stays comparable when a test changes
+ * the unit it prints in. Sizes use binary multiples, so a KB is 1024 bytes.
+ * @author krwalker
+ */
+final class Unit {
+
+    enum Dimension {
+        TIME("s"),
+        SIZE("B");
+
+        final String base;
+
+        Dimension(String base) {
+            this.base = base;
+        }
+    }
+
+    private static final java.util.Map<String, Unit> UNITS = new java.util.HashMap<String, Unit>();
+
+    // The longest symbol in the table.
+    private static final int MAX_SYMBOL_LENGTH = 3;
+
+    static {
+        add(Dimension.TIME, 1e-9, "ns");
+        add(Dimension.TIME, 1e-6, "us", "\u00b5s", "\u03bcs");
+        add(Dimension.TIME, 1e-3, "ms");
+        add(Dimension.TIME, 1, "s", "sec");
+        add(Dimension.TIME, 60, "min");
+        add(Dimension.TIME, 3600, "h");
+        add(Dimension.SIZE, 1, "B");
+        add(Dimension.SIZE, 1L << 10, "kB", "KB", "KiB");
+        add(Dimension.SIZE, 1L << 20, "MB", "MiB");
+        add(Dimension.SIZE, 1L << 30, "GB", "GiB");
+        add(Dimension.SIZE, 1L << 40, "TB", "TiB");
+    }
+
+    private static void add(Dimension dimension, double factor, String... symbols) {
+        for (String symbol : symbols) {
+            UNITS.put(symbol, new Unit(dimension, factor));
+        }
+    }
+
+    final Dimension dimension;
+    final double factor;
+
+    private Unit(Dimension dimension, double factor) {
+        this.dimension = dimension;
+        this.factor = factor;
+    }
+
+    /**
+     * @return The unit of a symbol, ignoring surrounding whitespace, or null
+     * if it is not in the table.
+     */
+    static Unit of(String symbol) {
+        return symbol != null ? UNITS.get(symbol.trim()) : null;
+    }
+
+    /**
+     * @return The value in the base unit of a printed unit. Values of
+     * unknown units are left as they are.
+     */
+    static double toBase(double value, String symbol) {
+        Unit unit = of(symbol);
+        return unit != null ? value * unit.factor : value;
+    }
+
+    /**
+     * @return The value in a printed unit of a value in its base unit.
+     */
+    static double fromBase(double value, String symbol) {
+        Unit unit = of(symbol);
+        return unit != null ? value / unit.factor : value;
+    }
+
+    /**
+     * @return The symbol values of a printed unit are converted to, which
+     * is the unit itself if it is not in the table, or null if there is
+     * none.
+     */
+    static String baseOf(String symbol) {
+        if (symbol == null) {
+            return null;
+        }
+        Unit unit = of(symbol);
+        return unit != null ? unit.dimension.base : symbol.trim();
+    }
+
+    /**
+     * @return Whether values of the printed units can be compared once
+     * converted to their base units.
+     */
+    static boolean isComparable(String symbol, String otherSymbol) {
+        if (symbol == null || otherSymbol == null) {
+            return symbol == otherSymbol;
+        }
+        String base = baseOf(symbol);
+        return base.equals(baseOf(otherSymbol));
+    }
+
+    /**
+     * Finds a known unit printed after a number, and any whitespace before
+     * it. Only the trailing letters are looked at, so values without a unit
+     * cost a single character test.
+     * @return The index the unit, with its whitespace, starts at, or -1 if
+     * the value does not end with a known unit.
+     */
+    static int suffixStart(String value) {
+        int end = value.length();
+        int start = end;
+        while (start > 0 && end - start < MAX_SYMBOL_LENGTH && Character.isLetter(value.charAt(start - 1))) {
+            --start;
+        }
+        if (start == end || start == 0 || !UNITS.containsKey(value.substring(start, end))) {
+            return -1;
+        }
+        while (start > 0 && value.charAt(start - 1) == ' ') {
+            --start;
+        }
+        char last = start > 0 ? value.charAt(start - 1) : ' ';
+        return (last >= '0' && last <= '9') || last == '.' ? start : -1;
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Stellar Science Ltd Co, K. R. Walker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/*
+ * Draws the history of a measurement in the browser from the JSON served by
+ * History.doSeries. The mouse wheel zooms, dragging pans, double clicking
+ * resets and clicking a point opens its test. Red lines mark the builds where
+ * the measurement changed, and a shaded band spans the 5th to 95th percentiles
+ * of measurements printed more than once.
+ *
+ * The canvas names its data with a data-series attribute and the
+ * server-rendered image with a data-image attribute, which is shown instead
+ * if the browser cannot draw on a canvas.
+ */
+var measurementPlots = measurementPlots || {};
+
+measurementPlots.drawHistory = function(canvas) {
+    var seriesUrl = canvas.getAttribute("data-series");
+    var imageUrl = canvas.getAttribute("data-image");
+
+    if (!canvas.getContext) {
+        var image = document.createElement("img");
+        image.src = imageUrl;
+        canvas.parentNode.replaceChild(image, canvas);
+        return;
+    }
+    canvas.style.display = "";
+
+    var request = new XMLHttpRequest();
+    request.open("GET", seriesUrl, true);
+    request.onreadystatechange = function() {
+        if (request.readyState != 4) {
+            return;
+        }
+        if (request.status != 200) {
+            var image = document.createElement("img");
+            image.src = imageUrl;
+            canvas.parentNode.replaceChild(image, canvas);
+            return;
+        }
+        var text = request.responseText;
+        var series = window.JSON ? JSON.parse(text) : text.evalJSON(true);
+        new measurementPlots.Chart(canvas, series).draw();
+    };
+    request.send(null);
+};
+
+measurementPlots.Chart = function(canvas, series) {
+    this.canvas = canvas;
+    this.context = canvas.getContext("2d");
+    this.points = series.points;
+    this.unit = series.unit || null;
+    // Leave room for the unit along the value axis.
+    this.margin = { left: this.unit ? 72 : 60, right: 10, top: 10, bottom: 30 };
+    this.tip = document.createElement("div");
+    this.tip.style.cssText = "position: absolute; display: none; background: #ffffe0;"
+            + " border: 1px solid #999; padding: 2px 4px; font-size: smaller; pointer-events: none;";
+    document.body.appendChild(this.tip);
+    this.reset();
+    this.listen();
+};
+
+measurementPlots.Chart.prototype = {
+
+    /** Shows every point. */
+    reset: function() {
+        var points = this.points;
+        this.low = points.length > 0 ? points[0].build : 0;
+        this.high = points.length > 0 ? points[points.length - 1].build : 1;
+        if (this.high == this.low) {
+            this.low -= 1;
+            this.high += 1;
+        }
+    },
+
+    plotWidth: function() {
+        return this.canvas.width - this.margin.left - this.margin.right;
+    },
+
+    plotHeight: function() {
+        return this.canvas.height - this.margin.top - this.margin.bottom;
+    },
+
+    xOf: function(build) {
+        return this.margin.left + (build - this.low) / (this.high - this.low) * this.plotWidth();
+    },
+
+    buildAt: function(x) {
+        return this.low + (x - this.margin.left) / this.plotWidth() * (this.high - this.low);
+    },
+
+    yOf: function(value) {
+        return this.margin.top + (1 - (value - this.bottom) / (this.top - this.bottom)) * this.plotHeight();
+    },
+
+    /** The range of the values of the visible points, with round ticks. */
+    scale: function() {
+        var min = Infinity;
+        var max = -Infinity;
+        for (var i = 0; i < this.points.length; ++i) {
+            var point = this.points[i];
+            if (point.value !== null && point.build >= this.low && point.build <= this.high) {
+                min = Math.min(min, point.value, point.low !== undefined ? point.low : point.value);
+                max = Math.max(max, point.value, point.high !== undefined ? point.high : point.value);
+            }
+        }
+        if (min == Infinity) {
+            min = 0;
+            max = 1;
+        } else if (min == max) {
+            min -= Math.abs(min) / 10 || 1;
+            max += Math.abs(max) / 10 || 1;
+        }
+        var step = Math.pow(10, Math.floor(Math.log(max - min) / Math.LN10));
+        if ((max - min) / step < 4) {
+            step /= 2;
+        }
+        this.step = step;
+        this.bottom = Math.floor(min / step) * step;
+        this.top = Math.ceil(max / step) * step;
+    },
+
+    draw: function() {
+        var context = this.context;
+        var margin = this.margin;
+        var width = this.canvas.width;
+        var height = this.canvas.height;
+        this.scale();
+
+        context.clearRect(0, 0, width, height);
+        context.font = "10px sans-serif";
+        context.fillStyle = "#000";
+        context.strokeStyle = "#ccc";
+        context.lineWidth = 1;
+
+        // The value ticks and grid.
+        context.textAlign = "right";
+        context.textBaseline = "middle";
+        for (var value = this.bottom; value <= this.top + this.step / 2; value += this.step) {
+            var y = Math.round(this.yOf(value)) + 0.5;
+            context.beginPath();
+            context.moveTo(margin.left, y);
+            context.lineTo(width - margin.right, y);
+            context.stroke();
+            context.fillText(String(Number(value.toPrecision(12))), margin.left - 4, y);
+        }
+
+        // The unit of the values, along their axis.
+        if (this.unit) {
+            context.save();
+            context.translate(8, margin.top + this.plotHeight() / 2);
+            context.rotate(-Math.PI / 2);
+            context.textAlign = "center";
+            context.fillText(this.unit, 0, 0);
+            context.restore();
+        }
+
+        // The build ticks, as many as fit.
+        context.textAlign = "center";
+        context.textBaseline = "top";
+        var buildStep = Math.max(1, Math.ceil((this.high - this.low) / (this.plotWidth() / 50)));
+        for (var build = Math.ceil(this.low / buildStep) * buildStep; build <= this.high; build += buildStep) {
+            context.fillText("#" + build, this.xOf(build), height - margin.bottom + 4);
+        }
+
+        // The series, clipped to the plot and broken where there is no value.
+        context.save();
+        context.beginPath();
+        context.rect(margin.left, margin.top, this.plotWidth(), this.plotHeight());
+        context.clip();
+        // The builds where the measurement changed.
+        context.strokeStyle = "#cc0000";
+        context.lineWidth = 1;
+        for (var c = 0; c < this.points.length; ++c) {
+            if (this.points[c].changePoint) {
+                var changeX = Math.round(this.xOf(this.points[c].build)) + 0.5;
+                context.beginPath();
+                context.moveTo(changeX, margin.top);
+                context.lineTo(changeX, height - margin.bottom);
+                context.stroke();
+            }
+        }
+        this.drawBand();
+        context.strokeStyle = "#3465a4";
+        context.fillStyle = "#3465a4";
+        context.lineWidth = 2;
+        context.beginPath();
+        var drawing = false;
+        var visible = 0;
+        for (var i = 0; i < this.points.length; ++i) {
+            var point = this.points[i];
+            if (point.value === null) {
+                drawing = false;
+                continue;
+            }
+            var x = this.xOf(point.build);
+            var y = this.yOf(point.value);
+            if (drawing) {
+                context.lineTo(x, y);
+            } else {
+                context.moveTo(x, y);
+                drawing = true;
+            }
+            if (point.build >= this.low && point.build <= this.high) {
+                ++visible;
+            }
+        }
+        context.stroke();
+        // Mark the points while they are far enough apart to tell apart.
+        if (visible > 0 && this.plotWidth() / visible >= 4) {
+            for (var j = 0; j < this.points.length; ++j) {
+                if (this.points[j].value !== null) {
+                    context.beginPath();
+                    context.arc(this.xOf(this.points[j].build), this.yOf(this.points[j].value), 3, 0, 2 * Math.PI, false);
+                    context.fill();
+                }
+            }
+        }
+        context.restore();
+
+        context.strokeStyle = "#000";
+        context.lineWidth = 1;
+        context.strokeRect(margin.left + 0.5, margin.top + 0.5, this.plotWidth(), this.plotHeight());
+    },
+
+    /** Shades between the percentiles of each run of points that have them. */
+    drawBand: function() {
+        var context = this.context;
+        context.fillStyle = "rgba(114, 159, 207, 0.35)";
+        var start = 0;
+        while (start < this.points.length) {
+            if (this.points[start].low === undefined) {
+                ++start;
+                continue;
+            }
+            var end = start;
+            while (end < this.points.length && this.points[end].low !== undefined) {
+                ++end;
+            }
+            context.beginPath();
+            for (var i = start; i < end; ++i) {
+                var x = this.xOf(this.points[i].build);
+                if (i == start) {
+                    context.moveTo(x, this.yOf(this.points[i].high));
+                } else {
+                    context.lineTo(x, this.yOf(this.points[i].high));
+                }
+            }
+            for (var j = end - 1; j >= start; --j) {
+                context.lineTo(this.xOf(this.points[j].build), this.yOf(this.points[j].low));
+            }
+            context.closePath();
+            context.fill();
+            start = end;
+        }
+    },
+
+    /** The point nearest to a horizontal position, or null if none is close. */
+    pointAt: function(x) {
+        var nearest = null;
+        var distance = 8;
+        for (var i = 0; i < this.points.length; ++i) {
+            var point = this.points[i];
+            var d = Math.abs(this.xOf(point.build) - x);
+            if (point.value !== null && d < distance) {
+                nearest = point;
+                distance = d;
+            }
+        }
+        return nearest;
+    },
+
+    offsetOf: function(event) {
+        var rectangle = this.canvas.getBoundingClientRect();
+        return { x: event.clientX - rectangle.left, y: event.clientY - rectangle.top };
+    },
+
+    listen: function() {
+        var chart = this;
+        var canvas = this.canvas;
+        var dragFrom = null;
+        var dragged = false;
+
+        canvas.onmousedown = function(event) {
+            event = event || window.event;
+            dragFrom = chart.offsetOf(event).x;
+            dragged = false;
+            return false;
+        };
+        canvas.onmouseup = function(event) {
+            event = event || window.event;
+            var wasDragged = dragged;
+            dragFrom = null;
+            if (!wasDragged) {
+                var point = chart.pointAt(chart.offsetOf(event).x);
+                if (point !== null) {
+                    window.location.href = point.url;
+                }
+            }
+        };
+        canvas.onmousemove = function(event) {
+            event = event || window.event;
+            var x = chart.offsetOf(event).x;
+            if (dragFrom !== null && Math.abs(x - dragFrom) > 2) {
+                var shift = (dragFrom - x) / chart.plotWidth() * (chart.high - chart.low);
+                chart.low += shift;
+                chart.high += shift;
+                dragFrom = x;
+                dragged = true;
+                chart.tip.style.display = "none";
+                chart.draw();
+                return;
+            }
+            var point = chart.pointAt(x);
+            if (point === null) {
+                chart.tip.style.display = "none";
+                canvas.style.cursor = "move";
+                return;
+            }
+            canvas.style.cursor = "pointer";
+            chart.tip.innerHTML = "";
+            chart.tip.appendChild(document.createTextNode(point.name
+                    + (point.node ? " " + point.node : "") + " : " + point.text
+                    + (point.count !== undefined ? " (" + point.low + " - " + point.high + ", n = " + point.count + ")" : "")));
+            chart.tip.style.left = (event.clientX + (window.pageXOffset || document.documentElement.scrollLeft) + 12) + "px";
+            chart.tip.style.top = (event.clientY + (window.pageYOffset || document.documentElement.scrollTop) + 12) + "px";
+            chart.tip.style.display = "block";
+        };
+        canvas.onmouseout = function() {
+            dragFrom = null;
+            chart.tip.style.display = "none";
+        };
+        canvas.ondblclick = function() {
+            chart.reset();
+            chart.draw();
+        };
+        var wheel = function(event) {
+            event = event || window.event;
+            var delta = event.deltaY || -event.wheelDelta || event.detail;
+            var center = chart.buildAt(chart.offsetOf(event).x);
+            var factor = delta > 0 ? 1.25 : 0.8;
+            // Keep at least two builds in view.
+            if ((chart.high - chart.low) * factor >= 2) {
+                chart.low = center - (center - chart.low) * factor;
+                chart.high = center + (chart.high - center) * factor;
+                chart.draw();
+            }
+            if (event.preventDefault) {
+                event.preventDefault();
+            }
+            return false;
+        };
+        if (canvas.addEventListener) {
+            canvas.addEventListener("DOMMouseScroll", wheel, false);
+            canvas.addEventListener("mousewheel", wheel, false);
+        } else {
+            canvas.onmousewheel = wheel;
+        }
+    }
+};